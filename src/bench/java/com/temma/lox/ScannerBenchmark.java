@@ -0,0 +1,82 @@
+package com.temma.lox;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how many tokens per second the {@link Scanner} produces, once with
+ * {@link CharRuns#SCALAR} and, when the Vector API is built and enabled, once
+ * with {@link CharRuns#vector()}. The script scanned is generated to look like
+ * the generated scripts the bulk runs were written for: long comments and
+ * string literals, indentation, identifiers and a few numbers.
+ *
+ * <pre>
+ * mvn -Pbench,vector package
+ * java --add-modules jdk.incubator.vector -cp target/classes com.temma.lox.ScannerBenchmark [megabytes]
+ * </pre>
+ */
+public final class ScannerBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private ScannerBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        String script = generate(megabytes << 20);
+        Map<String, CharRuns> candidates = new LinkedHashMap<>();
+        candidates.put("scalar", CharRuns.SCALAR);
+        CharRuns vector = CharRuns.vector();
+        if (vector != null) {
+            candidates.put("vector", vector);
+        } else {
+            System.out.println("vector: not available (build with -Pvector, run with --add-modules jdk.incubator.vector)");
+        }
+        for (Map.Entry<String, CharRuns> candidate : candidates.entrySet()) {
+            Scanner.useRuns(candidate.getValue());
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                scan(script);
+            }
+            long tokens = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                tokens += scan(script);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s: %.2fM tokens/s (%d tokens per round)%n",
+                    candidate.getKey(), tokens / seconds / 1e6, tokens / ROUNDS);
+        }
+        Scanner.useRuns(CharRuns.SCALAR);
+    }
+
+    /** Scans the whole script, returning how many tokens it has. */
+    private static long scan(String script) {
+        TokenBuffer tokens = new TokenBuffer(new Scanner(new StringReader(script)));
+        int index = 0;
+        while (tokens.type(index) != TokenType.EOF) {
+            index++;
+        }
+        return index;
+    }
+
+    private static String generate(int size) {
+        Random random = new Random(42);
+        StringBuilder script = new StringBuilder(size + 256);
+        int n = 0;
+        while (script.length() < size) {
+            script.append("// ").append("generated record ".repeat(1 + random.nextInt(6))).append(n).append('\n');
+            script.append("    var record_").append(n).append(" = \"")
+                    .append("payload text ".repeat(1 + random.nextInt(8))).append("\";\n");
+            script.append("    if (record_").append(n).append(" != nil) {\n")
+                    .append("        print record_").append(n).append(" + \"-").append(random.nextInt(1000)).append("\";\n")
+                    .append("        total = total + ").append(random.nextInt(100000)).append(";\n")
+                    .append("    }\n\n");
+            n++;
+        }
+        return script.toString();
+    }
+}
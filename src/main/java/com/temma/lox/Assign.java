@@ -1,6 +1,22 @@
 package com.temma.lox;
 
-record Assign(Token name, Expr value) implements Expr {
+final class Assign extends VariableRef {
+
+    private final Token name;
+    private final Expr value;
+
+    Assign(Token name, Expr value) {
+        this.name = name;
+        this.value = value;
+    }
+
+    Token name() {
+        return name;
+    }
+
+    Expr value() {
+        return value;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
@@ -1,10 +1,43 @@
 package com.temma.lox;
 
-record Binary(Expr left, Token operator, Expr right) implements Expr {
+final class Binary implements Expr {
+
+    private final Expr left;
+    private final Token operator;
+    private final Expr right;
+
+    /**
+     * {@link Interpreter#yieldsNumber} of this expression, worked out from the
+     * operands' when it is built so that evaluating it does not walk the
+     * operands again.
+     */
+    final boolean yieldsNumber;
+
+    Binary(Expr left, Token operator, Expr right) {
+        this.left = left;
+        this.operator = operator;
+        this.right = right;
+        this.yieldsNumber = switch (operator.type) {
+            case MINUS, SLASH, STAR -> true;
+            case PLUS -> Interpreter.yieldsNumber(left) || Interpreter.yieldsNumber(right);
+            default -> false;
+        };
+    }
+
+    Expr left() {
+        return left;
+    }
+
+    Token operator() {
+        return operator;
+    }
+
+    Expr right() {
+        return right;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
         return visitor.visitBinaryExpr(this);
     }
-
 }
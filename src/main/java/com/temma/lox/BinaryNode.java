@@ -0,0 +1,623 @@
+package com.temma.lox;
+
+/**
+ * Self-specializing binary operator. A site starts uninitialized, looks at the
+ * first operands it receives and rewrites itself into a node for exactly those
+ * types: two exact integers (see {@link Numbers}) become a long add/compare,
+ * other numbers a double one, two strings a concatenation. When a specialized
+ * node later sees operands its guard rejects, it rewrites itself to the next
+ * more general node: a long node that meets another number or an inexact
+ * result widens to double, anything else goes to the generic node, which
+ * handles everything and never changes again.
+ */
+abstract class BinaryNode extends ExprNode {
+
+    ExprNode left;
+    ExprNode right;
+    final Token operator;
+
+    BinaryNode(ExprNode left, Token operator, ExprNode right) {
+        this.left = adopt(left);
+        this.operator = operator;
+        this.right = adopt(right);
+    }
+
+    BinaryNode(BinaryNode node) {
+        this(node.left, node.operator, node.right);
+    }
+
+    static BinaryNode create(ExprNode left, Token operator, ExprNode right) {
+        return new Uninitialized(left, operator, right);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+        Object leftValue = left.execute(environment);
+        Object rightValue = right.execute(environment);
+        return executeWith(leftValue, rightValue);
+    }
+
+    abstract Object executeWith(Object leftValue, Object rightValue);
+
+    @Override
+    void replaceChild(Node oldChild, Node newChild) {
+        left = swap(left, oldChild, newChild);
+        right = swap(right, oldChild, newChild);
+    }
+
+    final Object generalize(Object leftValue, Object rightValue) {
+        return replace(new Generic(this)).executeWith(leftValue, rightValue);
+    }
+
+    /** Rewrites a long node to its double counterpart, or to generic for operands that are not numbers. */
+    final Object widen(Object leftValue, Object rightValue) {
+        if (!Numbers.isNumber(leftValue) || !Numbers.isNumber(rightValue)) {
+            return generalize(leftValue, rightValue);
+        }
+        return replace(doubleNode()).executeWith(leftValue, rightValue);
+    }
+
+    final BinaryNode doubleNode() {
+        switch (operator.type) {
+            case PLUS:
+                return new DoubleAdd(this);
+            case MINUS:
+                return new DoubleSubtract(this);
+            case STAR:
+                return new DoubleMultiply(this);
+            case SLASH:
+                return new DoubleDivide(this);
+            case GREATER:
+                return new DoubleGreater(this);
+            case GREATER_EQUAL:
+                return new DoubleGreaterEqual(this);
+            case LESS:
+                return new DoubleLess(this);
+            case LESS_EQUAL:
+                return new DoubleLessEqual(this);
+            default:
+                return new Generic(this);
+        }
+    }
+
+    private static final class Uninitialized extends BinaryNode {
+
+        Uninitialized(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            return replace(specialize(leftValue, rightValue)).executeWith(leftValue, rightValue);
+        }
+
+        private BinaryNode specialize(Object leftValue, Object rightValue) {
+            switch (operator.type) {
+                case EQUAL_EQUAL:
+                    return new Equal(this);
+                case BANG_EQUAL:
+                    return new NotEqual(this);
+                default:
+            }
+            if (leftValue instanceof Long && rightValue instanceof Long) {
+                switch (operator.type) {
+                    case PLUS:
+                        return new LongAdd(this);
+                    case MINUS:
+                        return new LongSubtract(this);
+                    case STAR:
+                        return new LongMultiply(this);
+                    case SLASH:
+                        return new LongDivide(this);
+                    case GREATER:
+                        return new LongGreater(this);
+                    case GREATER_EQUAL:
+                        return new LongGreaterEqual(this);
+                    case LESS:
+                        return new LongLess(this);
+                    case LESS_EQUAL:
+                        return new LongLessEqual(this);
+                    default:
+                }
+            }
+            if (Numbers.isNumber(leftValue) && Numbers.isNumber(rightValue)) {
+                return doubleNode();
+            }
+            if (operator.type == TokenType.PLUS && Rope.isString(leftValue) && Rope.isString(rightValue)) {
+                return new StringConcat(this);
+            }
+            return new Generic(this);
+        }
+    }
+
+    /**
+     * Arithmetic on two exact integers, reading its operands through
+     * {@link ExprNode#executeLong}. The first result that is not an exact
+     * integer widens the node to double arithmetic for good.
+     */
+    private abstract static class LongArithmetic extends BinaryNode {
+
+        LongArithmetic(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        final Object execute(Environment environment) {
+            long a;
+            try {
+                a = left.executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                return widen(e.result, right.execute(environment));
+            }
+            long b;
+            try {
+                b = right.executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                return widen(a, e.result);
+            }
+            long result = apply(a, b);
+            if (result == Numbers.INEXACT) {
+                return widen(a, b);
+            }
+            return result;
+        }
+
+        @Override
+        final double executeDouble(Environment environment) throws UnexpectedResultException {
+            try {
+                return executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(e.result);
+            }
+        }
+
+        @Override
+        final long executeLong(Environment environment) throws UnexpectedResultException {
+            long a;
+            try {
+                a = left.executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                throw new UnexpectedResultException(widen(e.result, right.execute(environment)));
+            }
+            long b;
+            try {
+                b = right.executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                throw new UnexpectedResultException(widen(a, e.result));
+            }
+            long result = apply(a, b);
+            if (result == Numbers.INEXACT) {
+                throw new UnexpectedResultException(widen(a, b));
+            }
+            return result;
+        }
+
+        @Override
+        final Object executeWith(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Long a && rightValue instanceof Long b) {
+                long result = apply(a, b);
+                if (result != Numbers.INEXACT) {
+                    return result;
+                }
+            }
+            return widen(leftValue, rightValue);
+        }
+
+        /** The exact result, or {@link Numbers#INEXACT}. */
+        abstract long apply(long a, long b);
+    }
+
+    private static final class LongAdd extends LongArithmetic {
+
+        LongAdd(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Numbers.add(a, b);
+        }
+    }
+
+    private static final class LongSubtract extends LongArithmetic {
+
+        LongSubtract(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Numbers.subtract(a, b);
+        }
+    }
+
+    private static final class LongMultiply extends LongArithmetic {
+
+        LongMultiply(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Numbers.multiply(a, b);
+        }
+    }
+
+    private static final class LongDivide extends LongArithmetic {
+
+        LongDivide(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Numbers.divide(a, b);
+        }
+    }
+
+    /**
+     * Comparison of two exact integers, which compare the same as the doubles
+     * they stand for. Any other number widens the node to a double comparison.
+     */
+    private abstract static class LongComparison extends BinaryNode {
+
+        LongComparison(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        final Object execute(Environment environment) {
+            long a;
+            try {
+                a = left.executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                return widen(e.result, right.execute(environment));
+            }
+            long b;
+            try {
+                b = right.executeLong(environment);
+            } catch (UnexpectedResultException e) {
+                return widen(a, e.result);
+            }
+            return apply(a, b);
+        }
+
+        @Override
+        final Object executeWith(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Long a && rightValue instanceof Long b) {
+                return apply(a, b);
+            }
+            return widen(leftValue, rightValue);
+        }
+
+        abstract boolean apply(long a, long b);
+    }
+
+    private static final class LongGreater extends LongComparison {
+
+        LongGreater(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(long a, long b) {
+            return a > b;
+        }
+    }
+
+    private static final class LongGreaterEqual extends LongComparison {
+
+        LongGreaterEqual(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(long a, long b) {
+            return a >= b;
+        }
+    }
+
+    private static final class LongLess extends LongComparison {
+
+        LongLess(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(long a, long b) {
+            return a < b;
+        }
+    }
+
+    private static final class LongLessEqual extends LongComparison {
+
+        LongLessEqual(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(long a, long b) {
+            return a <= b;
+        }
+    }
+
+    /**
+     * Arithmetic on two numbers, at least one of them not an exact integer.
+     * Its operands are executed through {@link ExprNode#executeDouble}, and as
+     * an operand itself it hands its result on the same way, so a subtree of
+     * them boxes only its final value.
+     */
+    private abstract static class DoubleArithmetic extends BinaryNode {
+
+        DoubleArithmetic(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        final Object execute(Environment environment) {
+            double a;
+            try {
+                a = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return generalize(e.result, right.execute(environment));
+            }
+            double b;
+            try {
+                b = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return generalize(a, e.result);
+            }
+            return apply(a, b);
+        }
+
+        @Override
+        final double executeDouble(Environment environment) throws UnexpectedResultException {
+            double a;
+            try {
+                a = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(generalize(e.result, right.execute(environment)));
+            }
+            double b;
+            try {
+                b = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return expectDouble(generalize(a, e.result));
+            }
+            return apply(a, b);
+        }
+
+        @Override
+        final Object executeWith(Object leftValue, Object rightValue) {
+            if (Numbers.isNumber(leftValue) && Numbers.isNumber(rightValue)) {
+                return apply(Numbers.toDouble(leftValue), Numbers.toDouble(rightValue));
+            }
+            return generalize(leftValue, rightValue);
+        }
+
+        abstract double apply(double a, double b);
+    }
+
+    /** Comparison of two numbers, reading its operands unboxed. */
+    private abstract static class DoubleComparison extends BinaryNode {
+
+        DoubleComparison(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        final Object execute(Environment environment) {
+            double a;
+            try {
+                a = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return generalize(e.result, right.execute(environment));
+            }
+            double b;
+            try {
+                b = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return generalize(a, e.result);
+            }
+            return apply(a, b);
+        }
+
+        @Override
+        final Object executeWith(Object leftValue, Object rightValue) {
+            if (Numbers.isNumber(leftValue) && Numbers.isNumber(rightValue)) {
+                return apply(Numbers.toDouble(leftValue), Numbers.toDouble(rightValue));
+            }
+            return generalize(leftValue, rightValue);
+        }
+
+        abstract boolean apply(double a, double b);
+    }
+
+    /** Unboxes a number that a failed specialization produced instead of a primitive result. */
+    private static double expectDouble(Object result) throws UnexpectedResultException {
+        if (Numbers.isNumber(result)) {
+            return Numbers.toDouble(result);
+        }
+        throw new UnexpectedResultException(result);
+    }
+
+    private static final class DoubleAdd extends DoubleArithmetic {
+
+        DoubleAdd(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a + b;
+        }
+    }
+
+    private static final class DoubleSubtract extends DoubleArithmetic {
+
+        DoubleSubtract(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a - b;
+        }
+    }
+
+    private static final class DoubleMultiply extends DoubleArithmetic {
+
+        DoubleMultiply(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a * b;
+        }
+    }
+
+    private static final class DoubleDivide extends DoubleArithmetic {
+
+        DoubleDivide(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a / b;
+        }
+    }
+
+    private static final class DoubleGreater extends DoubleComparison {
+
+        DoubleGreater(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a > b;
+        }
+    }
+
+    private static final class DoubleGreaterEqual extends DoubleComparison {
+
+        DoubleGreaterEqual(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a >= b;
+        }
+    }
+
+    private static final class DoubleLess extends DoubleComparison {
+
+        DoubleLess(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a < b;
+        }
+    }
+
+    private static final class DoubleLessEqual extends DoubleComparison {
+
+        DoubleLessEqual(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a <= b;
+        }
+    }
+
+    private static final class StringConcat extends BinaryNode {
+
+        StringConcat(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (Rope.isString(leftValue) && Rope.isString(rightValue)) {
+                return Rope.concat(leftValue, rightValue, operator);
+            }
+            return generalize(leftValue, rightValue);
+        }
+    }
+
+    private static final class Equal extends BinaryNode {
+
+        Equal(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            return Interpreter.isEqual(leftValue, rightValue);
+        }
+    }
+
+    private static final class NotEqual extends BinaryNode {
+
+        NotEqual(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            return !Interpreter.isEqual(leftValue, rightValue);
+        }
+    }
+
+    /** Handles every operand combination, with the same checks and errors as {@link Interpreter}. */
+    private static final class Generic extends BinaryNode {
+
+        Generic(BinaryNode node) {
+            super(node);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            switch (operator.type) {
+                case BANG_EQUAL:
+                    return !Interpreter.isEqual(leftValue, rightValue);
+                case EQUAL_EQUAL:
+                    return Interpreter.isEqual(leftValue, rightValue);
+                case PLUS:
+                    if (Numbers.isNumber(leftValue) && Numbers.isNumber(rightValue)) {
+                        return Numbers.add(leftValue, rightValue);
+                    } else if (Rope.isString(leftValue) && Rope.isString(rightValue)) {
+                        return Rope.concat(leftValue, rightValue, operator);
+                    }
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+                default:
+            }
+            Interpreter.checkNumberOperands(operator, leftValue, rightValue);
+            switch (operator.type) {
+                case GREATER:
+                    return Numbers.toDouble(leftValue) > Numbers.toDouble(rightValue);
+                case GREATER_EQUAL:
+                    return Numbers.toDouble(leftValue) >= Numbers.toDouble(rightValue);
+                case LESS:
+                    return Numbers.toDouble(leftValue) < Numbers.toDouble(rightValue);
+                case LESS_EQUAL:
+                    return Numbers.toDouble(leftValue) <= Numbers.toDouble(rightValue);
+                case MINUS:
+                    return Numbers.subtract(leftValue, rightValue);
+                case SLASH:
+                    return Numbers.divide(leftValue, rightValue);
+                case STAR:
+                    return Numbers.multiply(leftValue, rightValue);
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -2,11 +2,31 @@ package com.temma.lox;
 
 import java.util.List;
 
-record Block(List<Stmt> stmts) implements Stmt {
+final class Block implements Stmt {
+
+	private final List<Stmt> stmts;
+
+	/**
+	 * Whether the block runs in a frame of its own. Only outermost blocks of
+	 * top-level code that declare something need one; the locals of the others
+	 * live in the slots of the enclosing frame. Filled in by the {@link Resolver}.
+	 */
+	boolean hasEnvironment = true;
+
+	/** Size of the block's own frame, including the locals of nested blocks sharing it. */
+	int slotCount = 0;
+
+	Block(List<Stmt> stmts) {
+		this.stmts = stmts;
+	}
+
+	List<Stmt> stmts() {
+		return stmts;
+	}
 
 	@Override
-	public void accept(StmtVisitor visitor) {
-		visitor.visitBlock(this);
+	public <R> R accept(StmtVisitor<R> visitor) {
+		return visitor.visitBlock(this);
 	}
 
 }
@@ -2,7 +2,32 @@ package com.temma.lox;
 
 import java.util.List;
 
-record Call(Expr callee, Token paren, List<Expr> arguments) implements Expr {
+final class Call implements Expr {
+
+	private final Expr callee;
+	private final Token paren;
+	private final List<Expr> arguments;
+
+	final LoxCallSite site;
+
+	Call(Expr callee, Token paren, List<Expr> arguments) {
+		this.callee = callee;
+		this.paren = paren;
+		this.arguments = arguments;
+		this.site = new LoxCallSite(paren, arguments.size());
+	}
+
+	Expr callee() {
+		return callee;
+	}
+
+	Token paren() {
+		return paren;
+	}
+
+	List<Expr> arguments() {
+		return arguments;
+	}
 
 	@Override
 	public <R> R accept(ExprVisitor<R> visitor) {
@@ -0,0 +1,125 @@
+package com.temma.lox;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps deep Lox recursion off the thread's own stack. A program runs on a
+ * segment: a thread with a stack of {@link #SEGMENT_BYTES}, entered by
+ * {@link #onNewSegment}. Every {@link #CALLS_PER_SEGMENT} nested calls the
+ * next call moves to the next segment while the caller's segment waits, so
+ * recursion depth is bounded by {@link #MAX_DEPTH} rather than by -Xss, and
+ * only threads that actually recurse deeply pay for the stack.
+ *
+ * <p>A segment's thread is started the first time a call crosses into it and
+ * then waits for the next such call, so a program that keeps calling across
+ * a boundary hands each call to a running thread instead of starting one.
+ * While a segment runs, the one below it is blocked on it, so each segment
+ * has a single caller and needs only one thread. A thread that gets no call
+ * for {@link #IDLE_MILLIS} exits, and the next call that crosses starts a
+ * new one, so the threads of recursion that has unwound do not stay around.
+ */
+final class CallStack {
+
+    static final int CALLS_PER_SEGMENT = 1024;
+    /**
+     * At most 64 segments, so recursion at this depth runs on 64 threads and
+     * reserves up to 1 GB of address space for their stacks. Only the pages a
+     * stack actually reaches are committed, and the threads exit once idle.
+     */
+    static final int MAX_DEPTH = 64 * CALLS_PER_SEGMENT;
+    private static final long SEGMENT_BYTES = 16L << 20;
+    private static final long IDLE_MILLIS = 1000;
+
+    /** The segment that calls from the current thread's segment move to, once started. */
+    private static final ThreadLocal<Segment> NEXT = new ThreadLocal<>();
+
+    private CallStack() {
+    }
+
+    static boolean isSegmentBoundary(int depth) {
+        return depth % CALLS_PER_SEGMENT == 0;
+    }
+
+    static void checkDepth(int depth, Token function) {
+        if (depth >= MAX_DEPTH) {
+            throw new RuntimeError(function, "Stack overflow.");
+        }
+    }
+
+    /** Runs {@code body} on the next segment and waits for it, rethrowing whatever it throws. */
+    static <T> T onNewSegment(Callable<T> body) {
+        FutureTask<T> task = new FutureTask<>(body);
+        Segment segment = NEXT.get();
+        if (segment == null || !segment.run(task)) {
+            segment = new Segment();
+            NEXT.set(segment);
+            segment.run(task);
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A thread with a deep stack that runs the calls handed to it, one at a time, until it idles out. */
+    private static final class Segment {
+
+        private Runnable call;
+        private boolean exited;
+
+        Segment() {
+            Thread thread = new Thread(null, this::serve, "lox-stack", SEGMENT_BYTES);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Hands {@code call} to the thread, or returns false when the thread has exited. */
+        synchronized boolean run(Runnable call) {
+            if (exited) {
+                return false;
+            }
+            this.call = call;
+            notifyAll();
+            return true;
+        }
+
+        private void serve() {
+            for (;;) {
+                Runnable next;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + IDLE_MILLIS;
+                    while (call == null) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            exited = true;
+                            return;
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            exited = true;
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    next = call;
+                    call = null;
+                }
+                next.run();
+            }
+        }
+    }
+}
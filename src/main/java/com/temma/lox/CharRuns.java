@@ -0,0 +1,96 @@
+package com.temma.lox;
+
+/**
+ * Finds where the runs of characters the {@link Scanner} skips in bulk end:
+ * whitespace, comment and string bodies, identifiers. Each method looks at
+ * {@code chars[from..end)} and returns the index of the first character not
+ * in the run, or {@code end} when the run reaches it.
+ *
+ * <p>{@link #SCALAR} goes a character at a time. With {@code --simd} the
+ * scanner uses {@link #vector()} instead, which compares a whole vector of
+ * characters per step with the incubating Vector API. That one is only
+ * compiled by the {@code vector} Maven profile and needs the JVM to run with
+ * {@code --add-modules jdk.incubator.vector}.
+ */
+interface CharRuns {
+
+    CharRuns SCALAR = new Scalar();
+
+    /** End of a run of spaces, tabs, carriage returns and newlines. */
+    int skipWhitespace(char[] chars, int from, int end);
+
+    /** End of a run of ASCII letters, digits and underscores. */
+    int skipIdentifier(char[] chars, int from, int end);
+
+    /** Index of the first {@code c}. */
+    int indexOf(char[] chars, int from, int end, char c);
+
+    /** Number of newlines in {@code chars[from..end)}. */
+    int countNewlines(char[] chars, int from, int end);
+
+    /** The Vector API implementation, or null when it was not built or its module is not enabled. */
+    static CharRuns vector() {
+        try {
+            return (CharRuns) Class.forName("com.temma.lox.VectorCharRuns").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    final class Scalar implements CharRuns {
+
+        /** ASCII characters that may continue an identifier. */
+        private static final boolean[] IDENTIFIER_PART = new boolean[128];
+
+        static {
+            for (char c = 0; c < 128; c++) {
+                IDENTIFIER_PART[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            }
+        }
+
+        private Scalar() {
+        }
+
+        @Override
+        public int skipWhitespace(char[] chars, int from, int end) {
+            int i = from;
+            while (i < end) {
+                char c = chars[i];
+                if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                    break;
+                }
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int skipIdentifier(char[] chars, int from, int end) {
+            int i = from;
+            while (i < end && chars[i] < 128 && IDENTIFIER_PART[chars[i]]) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int indexOf(char[] chars, int from, int end, char c) {
+            int i = from;
+            while (i < end && chars[i] != c) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public int countNewlines(char[] chars, int from, int end) {
+            int newlines = 0;
+            for (int i = from; i < end; i++) {
+                if (chars[i] == '\n') {
+                    newlines++;
+                }
+            }
+            return newlines;
+        }
+    }
+}
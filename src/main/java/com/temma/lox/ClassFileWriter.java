@@ -0,0 +1,377 @@
+package com.temma.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JVM class file writer for the {@link JitCompiler}: a constant pool,
+ * fields, and methods with a {@link Code} body. Classes are emitted at version
+ * 49 so the verifier infers types itself and no stack map frames are needed.
+ */
+final class ClassFileWriter {
+
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    int utf8(String value) {
+        return entry("U" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return entry("S" + value, out -> {
+            out.writeByte(8);
+            out.writeShort(utf8);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return entry(tag + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private int entry(String key, PoolWriter writer) {
+        Integer existing = poolIndex.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            byte[] body = code.toBytes();
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toBytes(String thisClass, String superClass, String... interfaces) {
+        int thisIndex = classRef(thisClass);
+        int superIndex = classRef(superClass);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface PoolWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Branch target inside a {@link Code} body. */
+    static final class Label {
+        int position = -1;
+        int stack = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    /**
+     * Bytecode of one method. Tracks the operand stack depth as instructions are
+     * appended so that max_stack comes out right; a label takes on the depth of
+     * the jumps that target it.
+     */
+    static final class Code {
+
+        static final int ACONST_NULL = 0x01;
+        static final int LDC_W = 0x13;
+        static final int ALOAD = 0x19;
+        static final int ASTORE = 0x3a;
+        static final int AALOAD = 0x32;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int SWAP = 0x5f;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int GOTO = 0xa7;
+        static final int IFNULL = 0xc6;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int PUTSTATIC = 0xb3;
+        static final int GETFIELD = 0xb4;
+        static final int PUTFIELD = 0xb5;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int INVOKEINTERFACE = 0xb9;
+        static final int ANEWARRAY = 0xbd;
+        static final int CHECKCAST = 0xc0;
+
+        private final ClassFileWriter classFile;
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals;
+
+        Code(ClassFileWriter classFile, int maxLocals) {
+            this.classFile = classFile;
+            this.maxLocals = maxLocals;
+        }
+
+        int length() {
+            return length;
+        }
+
+        int newLocal() {
+            return maxLocals++;
+        }
+
+        void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        void aload(int local) {
+            u1(ALOAD);
+            u1(local);
+            adjust(1);
+        }
+
+        void astore(int local) {
+            u1(ASTORE);
+            u1(local);
+            adjust(-1);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(0x10);
+                u1(value);
+            } else {
+                u1(0x11);
+                u2(value);
+            }
+            adjust(1);
+        }
+
+        /** Pushes a string or class constant from the pool. */
+        void ldc(int poolIndex) {
+            u1(LDC_W);
+            u2(poolIndex);
+            adjust(1);
+        }
+
+        void typeOp(int opcode, String internalName) {
+            u1(opcode);
+            u2(classFile.classRef(internalName));
+            adjust(opcode == ANEWARRAY || opcode == CHECKCAST ? 0 : 1);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(classFile.fieldRef(owner, name, descriptor));
+            switch (opcode) {
+                case GETSTATIC -> adjust(1);
+                case PUTSTATIC -> adjust(-1);
+                case GETFIELD -> adjust(0);
+                case PUTFIELD -> adjust(-2);
+                default -> throw new IllegalArgumentException("Unsupported field opcode " + opcode);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int arguments = argumentSlots(descriptor);
+            boolean returnsValue = !descriptor.endsWith(")V");
+            u1(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                u2(classFile.interfaceMethodRef(owner, name, descriptor));
+                u1(arguments + 1);
+                u1(0);
+            } else {
+                u2(classFile.methodRef(owner, name, descriptor));
+            }
+            int receiver = opcode == INVOKESTATIC ? 0 : 1;
+            adjust(-arguments - receiver + (returnsValue ? 1 : 0));
+        }
+
+        void jump(int opcode, Label target) {
+            int start = length;
+            u1(opcode);
+            adjust(opcode == GOTO ? 0 : -1);
+            target.stack = stack;
+            target.fixups.add(start);
+            u2(0);
+            if (target.position >= 0) {
+                patch(target, start);
+            }
+        }
+
+        void mark(Label label) {
+            label.position = length;
+            if (label.stack >= 0) {
+                stack = label.stack;
+            } else {
+                label.stack = stack;
+            }
+            for (int fixup : label.fixups) {
+                patch(label, fixup);
+            }
+        }
+
+        private void patch(Label label, int jumpStart) {
+            int offset = label.position - jumpStart;
+            bytes[jumpStart + 1] = (byte) (offset >> 8);
+            bytes[jumpStart + 2] = (byte) offset;
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private static int argumentSlots(String descriptor) {
+            int slots = 0;
+            int i = 1;
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                while (c == '[') {
+                    c = descriptor.charAt(++i);
+                }
+                if (c == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                slots += (c == 'J' || c == 'D') && descriptor.charAt(i - 1) != '[' ? 2 : 1;
+                i++;
+            }
+            return slots;
+        }
+    }
+}
@@ -2,10 +2,41 @@ package com.temma.lox;
 
 import java.util.List;
 
-public record ClassStmt(Token name, Variable superclass, List<Function> methods) implements Stmt {
+final class ClassStmt implements Stmt {
+
+	private final Token name;
+	private final Variable superclass;
+	private final List<Function> methods;
+
+	/** Frame slot of a local class, filled in by the {@link Resolver}. */
+	int slot = 0;
+
+	/** Whether a closure captures the local class, so its slot holds an {@link Upvalue}. */
+	boolean isCaptured = false;
+
+	/** Frame slot of the box holding the superclass, which methods capture as {@code super}. */
+	int superSlot = 0;
+
+	ClassStmt(Token name, Variable superclass, List<Function> methods) {
+		this.name = name;
+		this.superclass = superclass;
+		this.methods = methods;
+	}
+
+	Token name() {
+		return name;
+	}
+
+	Variable superclass() {
+		return superclass;
+	}
+
+	List<Function> methods() {
+		return methods;
+	}
 
 	@Override
-	public void accept(StmtVisitor visitor) {
-		visitor.visitClassDecl(this);
+	public <R> R accept(StmtVisitor<R> visitor) {
+		return visitor.visitClassDecl(this);
 	}
 }
@@ -0,0 +1,558 @@
+package com.temma.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.temma.lox.vm.Chunk;
+import com.temma.lox.vm.FunctionProto;
+import com.temma.lox.vm.OpCode;
+
+/**
+ * Translates resolved statements into bytecode for the {@link com.temma.lox.vm.VM}.
+ * Locals live in stack slots and captured variables are reached through
+ * upvalues, so scoping is worked out here again in the clox fashion rather
+ * than taken from the {@link Resolver}, which has already reported the static
+ * errors by the time this runs.
+ */
+class Compiler implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+    private static final int MAX_OPERAND = 0xffff;
+
+    private FunctionState current;
+    private ClassState currentClass;
+    private int line = 1;
+
+    FunctionProto compile(List<Stmt> statements) {
+        current = new FunctionState(null, new FunctionProto(null, 0), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compileStmt(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    @Override
+    public Void visitExpressionStmt(ExpressionStmt stmt) {
+        compileExpr(stmt.expression());
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        compileExpr(stmt.value());
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableDeclaration(VarDeclaration varDeclaration) {
+        line = varDeclaration.name().line;
+        if (current.scopeDepth > 0) {
+            addLocal(varDeclaration.name());
+        }
+        if (varDeclaration.initializer() != null) {
+            compileExpr(varDeclaration.initializer());
+        } else {
+            emit(OpCode.NIL);
+        }
+        defineVariable(varDeclaration.name());
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block block) {
+        beginScope();
+        for (Stmt stmt : block.stmts()) {
+            compileStmt(stmt);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt ifStmt) {
+        compileExpr(ifStmt.condition());
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compileStmt(ifStmt.thenBranch());
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (ifStmt.elseBranch() != null) {
+            compileStmt(ifStmt.elseBranch());
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(WhileStmt whileStmt) {
+        int loopStart = chunk().count();
+        compileExpr(whileStmt.condition());
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compileStmt(whileStmt.body());
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(Function function) {
+        line = function.name().line;
+        if (current.scopeDepth > 0) {
+            addLocal(function.name());
+            markInitialized();
+        }
+        function(function, FunctionType.FUNCTION);
+        defineVariable(function.name());
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(ReturnStmt returnStmt) {
+        line = returnStmt.keyword().line;
+        if (returnStmt.value() == null || current.type == FunctionType.INITIALIZER) {
+            emitReturn();
+        } else {
+            compileExpr(returnStmt.value());
+            emit(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassDecl(ClassStmt classStmt) {
+        Token name = classStmt.name();
+        line = name.line;
+        int nameConstant = constant(name.lexeme);
+        if (current.scopeDepth > 0) {
+            addLocal(name);
+        }
+        emitWithOperand(OpCode.CLASS, nameConstant);
+        defineVariable(name);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (classStmt.superclass() != null) {
+            compileExpr(classStmt.superclass());
+            beginScope();
+            addLocal(syntheticToken("super"));
+            markInitialized();
+            namedVariable(name, false);
+            line = classStmt.superclass().name().line;
+            emit(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(name, false);
+        for (Function method : classStmt.methods()) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name().lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            line = method.name().line;
+            emitWithOperand(OpCode.METHOD, constant(method.name().lexeme));
+        }
+        emit(OpCode.POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        compileExpr(expr.left());
+        compileExpr(expr.right());
+        line = expr.operator().line;
+        switch (expr.operator().type) {
+            case BANG_EQUAL -> emit(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL -> emit(OpCode.EQUAL);
+            case GREATER -> emit(OpCode.GREATER);
+            case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL);
+            case LESS -> emit(OpCode.LESS);
+            case LESS_EQUAL -> emit(OpCode.LESS_EQUAL);
+            case MINUS -> emit(OpCode.SUBTRACT);
+            case PLUS -> emit(OpCode.ADD);
+            case SLASH -> emit(OpCode.DIVIDE);
+            case STAR -> emit(OpCode.MULTIPLY);
+            default -> throw new IllegalStateException("Unexpected binary operator " + expr.operator().type);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        compileExpr(expr.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        Object value = expr.value();
+        if (value == null) {
+            emit(OpCode.NIL);
+        } else if (value.equals(Boolean.TRUE)) {
+            emit(OpCode.TRUE);
+        } else if (value.equals(Boolean.FALSE)) {
+            emit(OpCode.FALSE);
+        } else if (value instanceof Long l) {
+            // The VM keeps every number as a double; see Numbers.
+            emitWithOperand(OpCode.CONSTANT, constant((double) l));
+        } else {
+            emitWithOperand(OpCode.CONSTANT, constant(value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        compileExpr(expr.right());
+        line = expr.operator().line;
+        if (expr.operator().type == TokenType.MINUS) {
+            emit(OpCode.NEGATE);
+        } else {
+            emit(OpCode.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable variable) {
+        namedVariable(variable.name(), false);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign assign) {
+        compileExpr(assign.value());
+        namedVariable(assign.name(), true);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical logical) {
+        compileExpr(logical.left());
+        if (logical.operator().type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compileExpr(logical.right());
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compileExpr(logical.right());
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call call) {
+        if (call.callee() instanceof GetExpr getExpr) {
+            compileExpr(getExpr.object());
+            compileArguments(call);
+            line = call.paren().line;
+            emitWithOperand(OpCode.INVOKE, constant(getExpr.name().lexeme));
+            emitByte(call.arguments().size());
+        } else if (call.callee() instanceof Super superExpr) {
+            namedVariable(syntheticToken("this"), false);
+            compileArguments(call);
+            namedVariable(superExpr.keyword(), false);
+            line = call.paren().line;
+            emitWithOperand(OpCode.SUPER_INVOKE, constant(superExpr.method().lexeme));
+            emitByte(call.arguments().size());
+        } else {
+            compileExpr(call.callee());
+            compileArguments(call);
+            line = call.paren().line;
+            emit(OpCode.CALL);
+            emitByte(call.arguments().size());
+        }
+        return null;
+    }
+
+    private void compileArguments(Call call) {
+        for (Expr argument : call.arguments()) {
+            compileExpr(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(GetExpr getExpr) {
+        compileExpr(getExpr.object());
+        line = getExpr.name().line;
+        emitWithOperand(OpCode.GET_PROPERTY, constant(getExpr.name().lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(SetExpr setExpr) {
+        compileExpr(setExpr.object());
+        compileExpr(setExpr.value());
+        line = setExpr.name().line;
+        emitWithOperand(OpCode.SET_PROPERTY, constant(setExpr.name().lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(ThisExpr thisExpr) {
+        namedVariable(thisExpr.keyword(), false);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Super superExpr) {
+        namedVariable(syntheticToken("this"), false);
+        namedVariable(superExpr.keyword(), false);
+        line = superExpr.method().line;
+        emitWithOperand(OpCode.GET_SUPER, constant(superExpr.method().lexeme));
+        return null;
+    }
+
+    private void function(Function declaration, FunctionType type) {
+        FunctionProto function = new FunctionProto(declaration.name().lexeme, declaration.params().size());
+        FunctionState state = new FunctionState(current, function, type);
+        current = state;
+        beginScope();
+        for (Token param : declaration.params()) {
+            addLocal(param);
+            markInitialized();
+        }
+        for (Stmt stmt : declaration.body()) {
+            compileStmt(stmt);
+        }
+        emitReturn();
+        function.setUpvalueCount(state.upvalues.size());
+        current = state.enclosing;
+
+        line = declaration.name().line;
+        emitWithOperand(OpCode.CLOSURE, constant(function));
+        for (UpvalueRef upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal() ? 1 : 0);
+            chunk().writeShort(upvalue.index(), line);
+        }
+    }
+
+    private void namedVariable(Token name, boolean assign) {
+        line = name.line;
+        byte getOp;
+        byte setOp;
+        int operand = resolveLocal(current, name);
+        if (operand != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else if ((operand = resolveUpvalue(current, name)) != -1) {
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        } else {
+            operand = constant(name.lexeme);
+            getOp = OpCode.GET_GLOBAL;
+            setOp = OpCode.SET_GLOBAL;
+        }
+        emitWithOperand(assign ? setOp : getOp, operand);
+    }
+
+    private int resolveLocal(FunctionState state, Token name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name.lexeme)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) {
+            return -1;
+        }
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).captured = true;
+            return addUpvalue(state, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            UpvalueRef upvalue = state.upvalues.get(i);
+            if (upvalue.index() == index && upvalue.isLocal() == isLocal) {
+                return i;
+            }
+        }
+        if (state.upvalues.size() > MAX_OPERAND) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new UpvalueRef(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() > MAX_OPERAND) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) {
+            return;
+        }
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitWithOperand(OpCode.DEFINE_GLOBAL, constant(name.lexeme));
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).captured) {
+                emit(OpCode.CLOSE_UPVALUE);
+            } else {
+                emit(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitWithOperand(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        chunk().writeShort(MAX_OPERAND, line);
+        return chunk().count() - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk().count() - offset - 2;
+        if (jump > MAX_OPERAND) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk().patchShort(offset, jump);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk().count() - loopStart + 2;
+        if (offset > MAX_OPERAND) {
+            Lox.error(line, "Loop body too large.");
+        }
+        chunk().writeShort(offset, line);
+    }
+
+    private int constant(Object value) {
+        int index = chunk().addConstant(value);
+        if (index > MAX_OPERAND) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void emit(byte op) {
+        chunk().write(op, line);
+    }
+
+    private void emitByte(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emitWithOperand(byte op, int operand) {
+        chunk().write(op, line);
+        chunk().writeShort(operand, line);
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk();
+    }
+
+    private Token syntheticToken(String text) {
+        return new Token(TokenType.IDENTIFIER, text, null, line);
+    }
+
+    private void compileStmt(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compileExpr(Expr expr) {
+        expr.accept(this);
+    }
+
+    private enum FunctionType {
+        SCRIPT, FUNCTION, METHOD, INITIALIZER
+    }
+
+    private static final class FunctionState {
+        final FunctionState enclosing;
+        final FunctionProto function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<UpvalueRef> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, FunctionProto function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            String slotZero = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+            locals.add(new Local(slotZero, 0));
+        }
+    }
+
+    private static final class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private static final class Local {
+        final String name;
+        int depth;
+        boolean captured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record UpvalueRef(int index, boolean isLocal) {
+    }
+}
@@ -3,60 +3,95 @@ package com.temma.lox;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A runtime scope. The global scope is looked up by {@link Symbol}; every other scope is
+ * the fixed-size frame of one call (or of a top-level block) whose slots were
+ * assigned by the {@link Resolver}. Variables of enclosing functions are not
+ * reached through a chain of frames but through the {@link Upvalue}s of the
+ * running closure, which the frame carries.
+ */
 class Environment {
 
-    private final Map<String, Object> values = new HashMap<>();
-
-    final Environment enclosing;
+    private final Map<Symbol, Object> values;
+    private final Object[] slots;
+    private final Upvalue[] upvalues;
+    private int defined = 0;
 
     public Environment() {
-        this.enclosing = null;
+        this.values = new HashMap<>();
+        this.slots = null;
+        this.upvalues = null;
     }
 
-    public Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    public Environment(int size, Upvalue[] upvalues) {
+        this.values = null;
+        this.slots = new Object[size];
+        this.upvalues = upvalues;
     }
 
-    void define(String name, Object value) {
+    void define(Symbol name, Object value) {
         this.values.put(name, value);
     }
 
+    void define(Object value) {
+        this.slots[defined++] = value;
+    }
+
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (enclosing != null) {
-            return enclosing.get(name);
+        Object value = values.get(name.symbol);
+        if (value != null || values.containsKey(name.symbol)) {
+            return value;
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'");
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        if (values.containsKey(name.symbol)) {
+            values.put(name.symbol, value);
             return;
         }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object get(int slot) {
+        return slots[slot];
     }
 
-    public void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void set(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    Upvalue box(int slot) {
+        return (Upvalue) slots[slot];
+    }
+
+    Upvalue upvalue(int index) {
+        return upvalues[index];
+    }
+
+    /** Reads a variable described by a resolved {@link VariableRef} kind and slot. */
+    Object read(int kind, int slot) {
+        switch (kind) {
+            case VariableRef.LOCAL:
+                return slots[slot];
+            case VariableRef.BOXED:
+                return ((Upvalue) slots[slot]).value;
+            default:
+                return upvalues[slot].value;
+        }
     }
 
-    private Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    /** Writes a variable described by a resolved {@link VariableRef} kind and slot. */
+    void write(int kind, int slot, Object value) {
+        switch (kind) {
+            case VariableRef.LOCAL:
+                slots[slot] = value;
+                break;
+            case VariableRef.BOXED:
+                ((Upvalue) slots[slot]).value = value;
+                break;
+            default:
+                upvalues[slot].value = value;
         }
-        return environment;
     }
 }
@@ -0,0 +1,31 @@
+package com.temma.lox;
+
+abstract class ExprNode extends Node {
+
+    abstract Object execute(Environment environment);
+
+    /**
+     * Evaluates to a primitive number. Nodes that compute numbers override it
+     * so arithmetic subtrees pass doubles along without boxing them; the
+     * default unboxes what {@link #execute} returns.
+     */
+    double executeDouble(Environment environment) throws UnexpectedResultException {
+        Object value = execute(environment);
+        if (value instanceof Double d) {
+            return d;
+        }
+        if (value instanceof Long l) {
+            return l;
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    /** Like {@link #executeDouble}, for a number kept as an exact integer (see {@link Numbers}). */
+    long executeLong(Environment environment) throws UnexpectedResultException {
+        Object value = execute(environment);
+        if (value instanceof Long l) {
+            return l;
+        }
+        throw new UnexpectedResultException(value);
+    }
+}
@@ -0,0 +1,499 @@
+package com.temma.lox;
+
+/**
+ * Expression nodes of the executable tree other than {@link BinaryNode}. Each
+ * node is built for one shape of its AST counterpart (local or global, plain
+ * call or method invocation, ...) so that the decision is taken once at build
+ * time instead of on every evaluation.
+ */
+final class ExprNodes {
+
+    private ExprNodes() {
+    }
+
+    static final class LiteralNode extends ExprNode {
+
+        private final Object value;
+
+        LiteralNode(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value;
+        }
+    }
+
+    static final class LocalReadNode extends ExprNode {
+
+        private final int slot;
+
+        LocalReadNode(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.get(slot);
+        }
+    }
+
+    static final class BoxedReadNode extends ExprNode {
+
+        private final int slot;
+
+        BoxedReadNode(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.box(slot).value;
+        }
+    }
+
+    static final class UpvalueReadNode extends ExprNode {
+
+        private final int index;
+
+        UpvalueReadNode(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.upvalue(index).value;
+        }
+    }
+
+    static final class GlobalReadNode extends ExprNode {
+
+        private final Token name;
+        private final Environment globals;
+
+        GlobalReadNode(Token name, Environment globals) {
+            this.name = name;
+            this.globals = globals;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return globals.get(name);
+        }
+    }
+
+    static final class LocalAssignNode extends ExprNode {
+
+        private final int slot;
+        private ExprNode value;
+
+        LocalAssignNode(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.set(slot, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    static final class BoxedAssignNode extends ExprNode {
+
+        private final int slot;
+        private ExprNode value;
+
+        BoxedAssignNode(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.box(slot).value = result;
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    static final class UpvalueAssignNode extends ExprNode {
+
+        private final int index;
+        private ExprNode value;
+
+        UpvalueAssignNode(int index, ExprNode value) {
+            this.index = index;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.upvalue(index).value = result;
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    static final class GlobalAssignNode extends ExprNode {
+
+        private final Token name;
+        private final Environment globals;
+        private ExprNode value;
+
+        GlobalAssignNode(Token name, Environment globals, ExprNode value) {
+            this.name = name;
+            this.globals = globals;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            globals.assign(name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    static final class AndNode extends ExprNode {
+
+        private ExprNode left;
+        private ExprNode right;
+
+        AndNode(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object leftValue = left.execute(environment);
+            if (!Interpreter.isTruthy(leftValue)) {
+                return leftValue;
+            }
+            return right.execute(environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            left = swap(left, oldChild, newChild);
+            right = swap(right, oldChild, newChild);
+        }
+    }
+
+    static final class OrNode extends ExprNode {
+
+        private ExprNode left;
+        private ExprNode right;
+
+        OrNode(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object leftValue = left.execute(environment);
+            if (Interpreter.isTruthy(leftValue)) {
+                return leftValue;
+            }
+            return right.execute(environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            left = swap(left, oldChild, newChild);
+            right = swap(right, oldChild, newChild);
+        }
+    }
+
+    static final class NotNode extends ExprNode {
+
+        private ExprNode operand;
+
+        NotNode(ExprNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return !Interpreter.isTruthy(operand.execute(environment));
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            operand = swap(operand, oldChild, newChild);
+        }
+    }
+
+    static final class NegateNode extends ExprNode {
+
+        private final Token operator;
+        private ExprNode operand;
+
+        NegateNode(Token operator, ExprNode operand) {
+            this.operator = operator;
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = operand.execute(environment);
+            if (Numbers.isNumber(value)) {
+                return Numbers.negate(value);
+            }
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+
+        @Override
+        double executeDouble(Environment environment) {
+            try {
+                return -operand.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            operand = swap(operand, oldChild, newChild);
+        }
+    }
+
+    /**
+     * Common argument handling of the three call shapes. A call in tail
+     * position hands a Lox function back as a {@link TailCall} instead of
+     * entering it.
+     */
+    abstract static class AbstractCallNode extends ExprNode {
+
+        final Interpreter interpreter;
+        final Token paren;
+        final ExprNode[] arguments;
+        private final LoxCallSite site;
+        private boolean isTailCall = false;
+
+        AbstractCallNode(Interpreter interpreter, Token paren, ExprNode[] arguments) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.arguments = adoptAll(arguments);
+            this.site = new LoxCallSite(paren, arguments.length);
+        }
+
+        final Object[] evaluateArguments(Environment environment) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].execute(environment);
+            }
+            return values;
+        }
+
+        void markTailCall() {
+            isTailCall = true;
+        }
+
+        final Object callValue(Object callee, Environment environment) {
+            Object[] values = evaluateArguments(environment);
+            if (isTailCall && callee instanceof LoxFunction function && values.length == function.arity()) {
+                return new TailCall(function, function.receiver(), values);
+            }
+            return site.call(interpreter, callee, values);
+        }
+
+        final Object invokeMethod(LoxFunction method, LoxInstance receiver, Environment environment) {
+            Object[] values = evaluateArguments(environment);
+            if (values.length != method.arity()) {
+                throw new RuntimeError(paren, "Expect " + method.arity() +
+                        " arguments but got " + values.length + ".");
+            }
+            if (isTailCall) {
+                return new TailCall(method, receiver, values);
+            }
+            return method.invoke(interpreter, receiver, values);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            swapAll(arguments, oldChild, newChild);
+        }
+    }
+
+    static final class CallNode extends AbstractCallNode {
+
+        private ExprNode callee;
+
+        CallNode(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+            super(interpreter, paren, arguments);
+            this.callee = adopt(callee);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return callValue(callee.execute(environment), environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            super.replaceChild(oldChild, newChild);
+            callee = swap(callee, oldChild, newChild);
+        }
+    }
+
+    /** {@code object.name(...)}: calls the method without creating a bound method. */
+    static final class InvokeNode extends AbstractCallNode {
+
+        private ExprNode object;
+        private final Token name;
+        private final PropertyCache cache = new PropertyCache();
+
+        InvokeNode(Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] arguments) {
+            super(interpreter, paren, arguments);
+            this.object = adopt(object);
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object receiver = object.execute(environment);
+            if (!(receiver instanceof LoxInstance instance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+            LoxFunction method = cache.method(instance, name);
+            if (method != null) {
+                return invokeMethod(method, instance, environment);
+            }
+            return callValue(cache.get(instance, name), environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            super.replaceChild(oldChild, newChild);
+            object = swap(object, oldChild, newChild);
+        }
+    }
+
+    static final class SuperInvokeNode extends AbstractCallNode {
+
+        private final ExprNode receiver;
+        private final ExprNode superclass;
+        private final Token method;
+
+        SuperInvokeNode(Interpreter interpreter, ExprNode receiver, ExprNode superclass, Token method, Token paren,
+                ExprNode[] arguments) {
+            super(interpreter, paren, arguments);
+            this.receiver = adopt(receiver);
+            this.superclass = adopt(superclass);
+            this.method = method;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            LoxInstance self = (LoxInstance) receiver.execute(environment);
+            return invokeMethod(findSuperMethod(superclass.execute(environment), method), self, environment);
+        }
+    }
+
+    static final class SuperNode extends ExprNode {
+
+        private final ExprNode receiver;
+        private final ExprNode superclass;
+        private final Token method;
+
+        SuperNode(ExprNode receiver, ExprNode superclass, Token method) {
+            this.receiver = adopt(receiver);
+            this.superclass = adopt(superclass);
+            this.method = method;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            LoxInstance self = (LoxInstance) receiver.execute(environment);
+            return findSuperMethod(superclass.execute(environment), method).bind(self);
+        }
+    }
+
+    static final class GetNode extends ExprNode {
+
+        private ExprNode object;
+        private final Token name;
+        private final PropertyCache cache = new PropertyCache();
+
+        GetNode(ExprNode object, Token name) {
+            this.object = adopt(object);
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (object.execute(environment) instanceof LoxInstance instance) {
+                return cache.get(instance, name);
+            }
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            object = swap(object, oldChild, newChild);
+        }
+    }
+
+    static final class SetNode extends ExprNode {
+
+        private ExprNode object;
+        private final Token name;
+        private ExprNode value;
+        private final PropertyCache cache = new PropertyCache();
+
+        SetNode(ExprNode object, Token name, ExprNode value) {
+            this.object = adopt(object);
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (!(object.execute(environment) instanceof LoxInstance instance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            Object result = value.execute(environment);
+            cache.set(instance, name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            object = swap(object, oldChild, newChild);
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    private static LoxFunction findSuperMethod(Object superclass, Token name) {
+        LoxFunction method = ((LoxClass) superclass).findMethod(name.symbol);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        return method;
+    }
+}
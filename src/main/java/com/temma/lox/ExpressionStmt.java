@@ -3,7 +3,7 @@ package com.temma.lox;
 public record ExpressionStmt(Expr expression) implements Stmt {
 
     @Override
-    public void accept(StmtVisitor visitor) {
-        visitor.visitExpressionStmt(this);
+    public <R> R accept(StmtVisitor<R> visitor) {
+        return visitor.visitExpressionStmt(this);
     }
 }
@@ -2,11 +2,88 @@ package com.temma.lox;
 
 import java.util.List;
 
-record Function(Token name, List<Token> params, List<Stmt> body) implements Stmt {
+final class Function implements Stmt {
+
+	private final Token name;
+	private final List<Token> params;
+	private List<Stmt> body;
+
+	/** Tokens of a body not parsed yet, see {@code --lazy}; null once it is. */
+	TokenRange deferredBody = null;
+
+	/** What the {@link Resolver} knew around a deferred body, to resolve it later. */
+	Resolver.Enclosing enclosing = null;
+
+	/**
+	 * Size of the call frame: the parameters followed by the locals of the body
+	 * and of its nested blocks. Filled in by the {@link Resolver}.
+	 */
+	int slotCount = 0;
+
+	/** Frame slot of a local function, filled in by the {@link Resolver}. */
+	int slot = 0;
+
+	/** Whether a closure captures the local function, so its slot holds an {@link Upvalue}. */
+	boolean isCaptured = false;
+
+	/**
+	 * Where each upvalue of a closure comes from, relative to the frame the
+	 * closure is created in: a slot {@code s >= 0} holding the box, or
+	 * {@code ~i} for upvalue {@code i} of the function running there. Filled
+	 * in by the {@link Resolver}.
+	 */
+	int[] captures = new int[0];
+
+	/** Slots of the parameters (and {@code this}) that closures capture, boxed on entry. */
+	int[] boxedSlots = new int[0];
+
+	/** Executable body, built on the first call when running on the {@link NodeInterpreter}. */
+	StmtNode[] nodes = null;
+
+	/** Calls seen so far, counted by the {@link JitCompiler} up to its threshold. */
+	int callCount = 0;
+
+	/** JVM code for the body once the function got hot, or null while interpreted. */
+	JitCompiled compiled = null;
+
+	Function(Token name, List<Token> params, List<Stmt> body) {
+		this.name = name;
+		this.params = params;
+		this.body = body;
+	}
+
+	Function(Token name, List<Token> params, TokenRange deferredBody) {
+		this(name, params, (List<Stmt>) null);
+		this.deferredBody = deferredBody;
+	}
+
+	Token name() {
+		return name;
+	}
+
+	List<Token> params() {
+		return params;
+	}
+
+	/** The statements of the body; null while it is deferred. */
+	List<Stmt> body() {
+		return body;
+	}
+
+	boolean isDeferred() {
+		return deferredBody != null;
+	}
+
+	/** Installs the body of a deferred function once parsed and resolved. */
+	void parsedBody(List<Stmt> body) {
+		this.body = body;
+		this.deferredBody = null;
+		this.enclosing = null;
+	}
 
 	@Override
-	public void accept(StmtVisitor visitor) {
-		visitor.visitFunctionDecl(this);
+	public <R> R accept(StmtVisitor<R> visitor) {
+		return visitor.visitFunctionDecl(this);
 	}
 
 }
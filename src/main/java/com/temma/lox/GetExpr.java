@@ -1,6 +1,24 @@
 package com.temma.lox;
 
-record GetExpr(Expr object, Token name) implements Expr {
+final class GetExpr implements Expr {
+
+    private final Expr object;
+    private final Token name;
+
+    final PropertyCache cache = new PropertyCache();
+
+    GetExpr(Expr object, Token name) {
+        this.object = object;
+        this.name = name;
+    }
+
+    Expr object() {
+        return object;
+    }
+
+    Token name() {
+        return name;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
@@ -3,7 +3,7 @@ package com.temma.lox;
 record IfStmt(Expr condition, Stmt thenBranch, Stmt elseBranch) implements Stmt {
 
 	@Override
-	public void accept(StmtVisitor visitor) {
-		visitor.visitIfStmt(this);
+	public <R> R accept(StmtVisitor<R> visitor) {
+		return visitor.visitIfStmt(this);
 	}
 }
@@ -1,18 +1,26 @@
 package com.temma.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements ExprVisitor<Object>, StmtVisitor {
+class Interpreter implements ExprVisitor<Object>, StmtVisitor<Object> {
 
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<Expr, Integer>();
+
+    /**
+     * Completion of a statement that ran to its end. Statements yield it, or
+     * the value of the {@code return} they executed, so returning needs no
+     * exception and allocates nothing.
+     */
+    static final Object NORMAL = new Object();
+
+    /** Number of Lox calls in progress, see {@link CallStack}. */
+    int callDepth = 0;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        globals.define(Symbol.of("clock"), new LoxCallable() {
 
             @Override
             public int arity() {
@@ -41,10 +49,14 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
         }
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) {
             return "nil";
         }
+        if (object instanceof Long l) {
+            // Printed as the double it stands for, which may be 1.0E7.
+            object = (double) l;
+        }
         if (object instanceof Double) {
             String text = object.toString();
             if (text.endsWith(".0")) {
@@ -57,6 +69,27 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
 
     @Override
     public Object visitBinaryExpr(Binary expr) {
+        switch (expr.operator().type) {
+            case GREATER:
+                return leftOperand(expr) > rightOperand(expr);
+            case GREATER_EQUAL:
+                return leftOperand(expr) >= rightOperand(expr);
+            case LESS:
+                return leftOperand(expr) < rightOperand(expr);
+            case LESS_EQUAL:
+                return leftOperand(expr) <= rightOperand(expr);
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return Numbers.valueOf(evaluateDouble(expr));
+            case PLUS:
+                if (expr.yieldsNumber) {
+                    return Numbers.valueOf(evaluateDouble(expr));
+                }
+                break;
+            default:
+        }
+
         Object left = evaluate(expr.left());
         Object right = evaluate(expr.right());
 
@@ -65,39 +98,107 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
-            case GREATER:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left >= (double) right;
-            case LESS:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left <= (double) right;
-            case MINUS:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left - (double) right;
             case PLUS:
-                if (left instanceof Double d1 && right instanceof Double d2) {
-                    return d1 + d2;
-                } else if (left instanceof String s1 && right instanceof String s2) {
-                    return s1 + s2;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+                    return Numbers.add(left, right);
+                } else if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right, expr.operator());
                 }
                 throw new RuntimeError(expr.operator(), "Operands must be two numbers or two strings");
-            case SLASH:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator(), left, right);
-                return (double) left * (double) right;
             default:
         }
         return null;
     }
 
+    /**
+     * Whether an expression either yields a number or fails: arithmetic other
+     * than a {@code +} that might join strings, negation, and number literals.
+     * Such an expression can be evaluated by {@link #evaluateDouble}. For a
+     * binary expression the answer is kept in {@link Binary#yieldsNumber}.
+     */
+    static boolean yieldsNumber(Expr expr) {
+        if (expr instanceof Binary binary) {
+            return binary.yieldsNumber;
+        }
+        if (expr instanceof Unary unary) {
+            return unary.operator().type == TokenType.MINUS;
+        }
+        if (expr instanceof Grouping grouping) {
+            return yieldsNumber(grouping.expression());
+        }
+        return expr instanceof Literal literal && Numbers.isNumber(literal.value());
+    }
+
+    /**
+     * Evaluates an expression for which {@link #yieldsNumber} holds to a
+     * primitive double, passing the intermediate results of its arithmetic
+     * along unboxed. Exact integers among them are doubles here too; only
+     * the final value is boxed as a long again (see {@link Numbers#valueOf}),
+     * which is cheaper than checking every step.
+     */
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Binary binary) {
+            double left = leftOperand(binary);
+            double right = rightOperand(binary);
+            switch (binary.operator().type) {
+                case PLUS:
+                    return left + right;
+                case MINUS:
+                    return left - right;
+                case SLASH:
+                    return left / right;
+                default:
+                    return left * right;
+            }
+        }
+        if (expr instanceof Unary unary) {
+            if (yieldsNumber(unary.right())) {
+                return -evaluateDouble(unary.right());
+            }
+            Object right = evaluate(unary.right());
+            checkNumberOperand(unary.operator(), right);
+            return -Numbers.toDouble(right);
+        }
+        if (expr instanceof Grouping grouping) {
+            return evaluateDouble(grouping.expression());
+        }
+        return Numbers.toDouble(((Literal) expr).value());
+    }
+
+    /**
+     * The left operand of a numeric operator. When it is not a number, the
+     * right operand is still evaluated before the error is reported.
+     */
+    private double leftOperand(Binary expr) {
+        if (yieldsNumber(expr.left())) {
+            return evaluateDouble(expr.left());
+        }
+        Object left = evaluate(expr.left());
+        if (Numbers.isNumber(left)) {
+            return Numbers.toDouble(left);
+        }
+        evaluate(expr.right());
+        throw operandError(expr.operator());
+    }
+
+    private double rightOperand(Binary expr) {
+        if (yieldsNumber(expr.right())) {
+            return evaluateDouble(expr.right());
+        }
+        Object right = evaluate(expr.right());
+        if (Numbers.isNumber(right)) {
+            return Numbers.toDouble(right);
+        }
+        throw operandError(expr.operator());
+    }
+
+    private static RuntimeError operandError(Token operator) {
+        if (operator.type == TokenType.PLUS) {
+            return new RuntimeError(operator, "Operands must be two numbers or two strings");
+        }
+        return new RuntimeError(operator, "Operands must be numbers.");
+    }
+
     @Override
     public Object visitGroupingExpr(Grouping expr) {
         return evaluate(expr.expression());
@@ -110,25 +211,42 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
 
     @Override
     public Object visitUnaryExpr(Unary expr) {
-        Object right = evaluate(expr.right());
-
         if (expr.operator().type == TokenType.MINUS) {
-            checkNumberOperand(expr.operator(), right);
-            return -(double) right;
+            return Numbers.valueOf(evaluateDouble(expr));
         } else if (expr.operator().type == TokenType.BANG) {
-            return !isTruthy(right);
+            return !isTruthy(evaluate(expr.right()));
         }
         return null;
     }
 
     @Override
-    public void visitVariableDeclaration(VarDeclaration stmt) {
+    public Object visitVariableDeclaration(VarDeclaration stmt) {
         Object value = null;
         if (stmt.initializer() != null) {
             value = evaluate(stmt.initializer());
         }
 
-        environment.define(stmt.name().lexeme, value);
+        declare(stmt.slot, stmt.isCaptured);
+        define(stmt.name(), stmt.slot, stmt.isCaptured, value);
+        return NORMAL;
+    }
+
+    /**
+     * Puts a fresh box in the slot of a captured local, before its value
+     * exists so that a function or class can capture itself.
+     */
+    private void declare(int slot, boolean isCaptured) {
+        if (isCaptured && environment != globals) {
+            environment.set(slot, new Upvalue(null));
+        }
+    }
+
+    private void define(Token name, int slot, boolean isCaptured, Object value) {
+        if (environment == globals) {
+            globals.define(name.symbol, value);
+        } else {
+            environment.write(isCaptured ? VariableRef.BOXED : VariableRef.LOCAL, slot, value);
+        }
     }
 
     @Override
@@ -136,10 +254,9 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
         return lookUpVariable(variable.name(), variable);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, VariableRef ref) {
+        if (ref.kind != VariableRef.GLOBAL) {
+            return environment.read(ref.kind, ref.slot);
         } else {
             return globals.get(name);
         }
@@ -149,47 +266,57 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
     public Object visitAssignExpr(Assign assign) {
         Object value = evaluate(assign.value());
 
-        Integer distance = locals.get(assign);
-        if (distance != null) {
-            environment.assignAt(distance, assign.name(), value);
+        if (assign.kind != VariableRef.GLOBAL) {
+            environment.write(assign.kind, assign.slot, value);
         } else {
             globals.assign(assign.name(), value);
         }
-
-        environment.assign(assign.name(), value);
         return value;
     }
 
     @Override
-    public void visitPrintStmt(Print stmt) {
+    public Object visitPrintStmt(Print stmt) {
         Object value = evaluate(stmt.value());
         System.out.println(stringify(value));
+        return NORMAL;
     }
 
     @Override
-    public void visitExpressionStmt(ExpressionStmt stmt) {
+    public Object visitExpressionStmt(ExpressionStmt stmt) {
         evaluate(stmt.expression());
+        return NORMAL;
     }
 
     @Override
-    public void visitBlock(Block block) {
-        executeBlock(block.stmts(), new Environment(environment));
+    public Object visitBlock(Block block) {
+        if (block.hasEnvironment) {
+            return executeBlock(block.stmts(), new Environment(block.slotCount, Upvalue.NONE));
+        }
+        if (block.stmts().size() == 1) {
+            return execute(block.stmts().get(0));
+        }
+        return executeStatements(block.stmts());
     }
 
     @Override
-    public void visitIfStmt(IfStmt ifStmt) {
+    public Object visitIfStmt(IfStmt ifStmt) {
         if (isTruthy(evaluate(ifStmt.condition()))) {
-            execute(ifStmt.thenBranch());
+            return execute(ifStmt.thenBranch());
         } else if (ifStmt.elseBranch() != null) {
-            execute(ifStmt.elseBranch());
+            return execute(ifStmt.elseBranch());
         }
+        return NORMAL;
     }
 
     @Override
-    public void visitWhileStmt(WhileStmt stmt) {
+    public Object visitWhileStmt(WhileStmt stmt) {
         while (isTruthy(evaluate(stmt.condition()))) {
-            execute(stmt.body());
+            Object completion = execute(stmt.body());
+            if (completion != NORMAL) {
+                return completion;
+            }
         }
+        return NORMAL;
     }
 
     @Override
@@ -209,40 +336,107 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
 
     @Override
     public Object visitCallExpr(Call call) {
-        Object callee = evaluate(call.callee());
-
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : call.arguments()) {
-            arguments.add(evaluate(argument));
+        if (call.callee() instanceof GetExpr getExpr) {
+            Object object = evaluate(getExpr.object());
+            if (object instanceof LoxInstance instance) {
+                LoxFunction method = getExpr.cache.method(instance, getExpr.name());
+                if (method != null) {
+                    return invokeMethod(call, method, instance);
+                }
+            }
+            return callValue(call, getProperty(getExpr, object));
+        }
+        if (call.callee() instanceof Super superExpr) {
+            LoxInstance object = (LoxInstance) evaluate(superExpr.receiver);
+            return invokeMethod(call, findSuperMethod(superExpr), object);
+        }
+        return callValue(call, evaluate(call.callee()));
+    }
+
+    /** Calls {@code obj.method(...)} with the receiver going straight into the callee frame. */
+    private Object invokeMethod(Call call, LoxFunction method, LoxInstance receiver) {
+        Object[] arguments = evaluateArguments(call);
+        checkArity(call, method, arguments);
+        return method.invoke(this, receiver, arguments);
+    }
+
+    private Object callValue(Call call, Object callee) {
+        return call.site.call(this, callee, evaluateArguments(call));
+    }
+
+    /**
+     * Evaluates a call in tail position like {@link #visitCallExpr}, except
+     * that a Lox function is not entered but handed back as a {@link TailCall}
+     * for the trampoline of the current function's caller.
+     */
+    private Object tailCall(Call call) {
+        if (call.callee() instanceof GetExpr getExpr) {
+            Object object = evaluate(getExpr.object());
+            if (object instanceof LoxInstance instance) {
+                LoxFunction method = getExpr.cache.method(instance, getExpr.name());
+                if (method != null) {
+                    Object[] arguments = evaluateArguments(call);
+                    checkArity(call, method, arguments);
+                    return new TailCall(method, instance, arguments);
+                }
+            }
+            return tailCallValue(call, getProperty(getExpr, object));
         }
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(call.paren(), "Can only call functions and classes.");
+        if (call.callee() instanceof Super superExpr) {
+            LoxInstance object = (LoxInstance) evaluate(superExpr.receiver);
+            LoxFunction method = findSuperMethod(superExpr);
+            Object[] arguments = evaluateArguments(call);
+            checkArity(call, method, arguments);
+            return new TailCall(method, object, arguments);
         }
-        LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
+        return tailCallValue(call, evaluate(call.callee()));
+    }
+
+    private Object tailCallValue(Call call, Object callee) {
+        Object[] arguments = evaluateArguments(call);
+        if (callee instanceof LoxFunction function && arguments.length == function.arity()) {
+            return new TailCall(function, function.receiver(), arguments);
+        }
+        return call.site.call(this, callee, arguments);
+    }
+
+    private void checkArity(Call call, LoxCallable function, Object[] arguments) {
+        if (arguments.length != function.arity()) {
             throw new RuntimeError(call.paren(), "Expect " + function.arity() +
-                    " arguments but got " + arguments.size() + ".");
+                    " arguments but got " + arguments.length + ".");
+        }
+    }
+
+    private Object[] evaluateArguments(Call call) {
+        List<Expr> expressions = call.arguments();
+        Object[] arguments = new Object[expressions.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expressions.get(i));
         }
-        return function.call(this, arguments);
+        return arguments;
     }
 
     @Override
-    public void visitFunctionDecl(Function declaration) {
-        LoxFunction function = new LoxFunction(declaration, environment, false);
-        environment.define(declaration.name().lexeme, function);
+    public Object visitFunctionDecl(Function declaration) {
+        declare(declaration.slot, declaration.isCaptured);
+        LoxFunction function = new LoxFunction(declaration, Upvalue.capture(declaration, environment), false);
+        define(declaration.name(), declaration.slot, declaration.isCaptured, function);
+        return NORMAL;
     }
 
     @Override
-    public void visitReturnStmt(ReturnStmt returnStmt) {
+    public Object visitReturnStmt(ReturnStmt returnStmt) {
         Object value = null;
-        if (returnStmt.value() != null) {
+        if (returnStmt.isTailCall) {
+            value = tailCall((Call) returnStmt.value());
+        } else if (returnStmt.value() != null) {
             value = evaluate(returnStmt.value());
         }
-        throw new Return(value);
+        return value;
     }
 
     @Override
-    public void visitClassDecl(ClassStmt classStmt) {
+    public Object visitClassDecl(ClassStmt classStmt) {
         Object superclass = null;
         if (classStmt.superclass() != null) {
             superclass = evaluate(classStmt.superclass());
@@ -251,33 +445,35 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
             }
         }
 
-        environment.define(classStmt.name().lexeme, null);
-
+        declare(classStmt.slot, classStmt.isCaptured);
+        Environment frame = environment;
         if (classStmt.superclass() != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            if (frame == globals) {
+                frame = new Environment(1, Upvalue.NONE);
+            }
+            frame.set(classStmt.superSlot, new Upvalue(superclass));
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
         for (Function method : classStmt.methods()) {
-            LoxFunction function = new LoxFunction(method, environment, method.name().lexeme.equals("init"));
-            methods.put(method.name().lexeme, function);
+            LoxFunction function = new LoxFunction(method, Upvalue.capture(method, frame),
+                    method.name().symbol == Symbol.INIT);
+            methods.put(method.name().symbol, function);
         }
 
         LoxClass klass = new LoxClass(classStmt.name().lexeme, (LoxClass) superclass, methods);
-
-        if (classStmt.superclass() != null) {
-            environment = environment.enclosing;
-        }
-
-        environment.assign(classStmt.name(), klass);
+        define(classStmt.name(), classStmt.slot, classStmt.isCaptured, klass);
+        return NORMAL;
     }
 
     @Override
     public Object visitGetExpr(GetExpr getExpr) {
-        Object object = evaluate(getExpr.object());
+        return getProperty(getExpr, evaluate(getExpr.object()));
+    }
+
+    private Object getProperty(GetExpr getExpr, Object object) {
         if (object instanceof LoxInstance loxInstance) {
-            return loxInstance.get(getExpr.name());
+            return getExpr.cache.get(loxInstance, getExpr.name());
         }
         throw new RuntimeError(getExpr.name(), "Only instances have properties.");
     }
@@ -289,7 +485,7 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
             throw new RuntimeError(setExpr.name(), "Only instances have fields.");
         }
         Object value = evaluate(setExpr.value());
-        ((LoxInstance) object).set(setExpr.name(), value);
+        setExpr.cache.set((LoxInstance) object, setExpr.name(), value);
         return value;
     }
 
@@ -298,21 +494,34 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
         return lookUpVariable(thisExpr.keyword(), thisExpr);
     }
 
-    void executeBlock(List<Stmt> stmts, Environment environment) {
+    /** Runs the statements until one of them returns; yields that completion. */
+    Object executeBlock(List<Stmt> stmts, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-
-            for (Stmt stmt : stmts) {
-                execute(stmt);
-            }
+            return executeStatements(stmts);
         } finally {
             this.environment = previous;
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object executeStatements(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            Object completion = execute(stmt);
+            if (completion != NORMAL) {
+                return completion;
+            }
+        }
+        return NORMAL;
+    }
+
+    /** Runs a function body, yielding the returned value or {@link #NORMAL} if it fell off the end. */
+    Object executeBody(Function declaration, Environment environment) {
+        return executeBlock(declaration.body(), environment);
+    }
+
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     private Object evaluate(Expr expr) {
@@ -320,30 +529,38 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) {
+        if (Numbers.isNumber(operand)) {
             return;
         }
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object leftOperand, Object rightOperand) {
-        if (leftOperand instanceof Double && rightOperand instanceof Double) {
+    static void checkNumberOperands(Token operator, Object leftOperand, Object rightOperand) {
+        if (Numbers.isNumber(leftOperand) && Numbers.isNumber(rightOperand)) {
             return;
         }
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) {
+    static boolean isEqual(Object a, Object b) {
+        // Such as two occurrences of a string literal, which share one
+        // string; NaN equals itself here as it does in Numbers.equal.
+        if (a == b) {
             return true;
         }
         if (a == null) {
             return false;
         }
+        if (Numbers.isNumber(a) && Numbers.isNumber(b)) {
+            return Numbers.equal(a, b);
+        }
+        if (Rope.isString(a) && Rope.isString(b)) {
+            return Rope.equal(a, b);
+        }
         return a.equals(b);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) {
             return false;
         }
@@ -353,22 +570,20 @@ class Interpreter implements ExprVisitor<Object>, StmtVisitor {
         return true;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
     @Override
     public Object visitSuperExpr(Super superExpr) {
-        int distance = locals.get(superExpr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+        LoxInstance object = (LoxInstance) evaluate(superExpr.receiver);
+        return findSuperMethod(superExpr).bind(object);
+    }
 
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(superExpr.method().lexeme);
+    private LoxFunction findSuperMethod(Super superExpr) {
+        LoxClass superclass = (LoxClass) lookUpVariable(superExpr.keyword(), superExpr);
+        LoxFunction method = superclass.findMethod(superExpr.method().symbol);
 
         if (method == null) {
             throw new RuntimeError(superExpr.method(), "Undefined property '" + superExpr.method().lexeme + "'.");
         }
-        return method.bind(object);
+        return method;
     }
 
 }
@@ -0,0 +1,7 @@
+package com.temma.lox;
+
+/** Implemented by the hidden classes the {@link JitCompiler} generates for hot functions. */
+interface JitCompiled {
+
+    Object call(Interpreter interpreter, Upvalue[] upvalues, LoxInstance self, Object[] arguments);
+}
@@ -0,0 +1,702 @@
+package com.temma.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.temma.lox.ClassFileWriter.Code;
+import com.temma.lox.ClassFileWriter.Label;
+
+/**
+ * Translates the body of a hot function into a JVM class, loaded as a hidden
+ * class, so HotSpot can optimize Lox code directly. Lox locals of the function
+ * become JVM locals; everything dynamic is delegated to {@link JitRuntime}.
+ *
+ * <p>Only self-contained bodies are compiled: a function declaring nested
+ * functions or classes could have its locals captured, which JVM locals cannot
+ * express. Such functions, and any the JVM refuses to load, simply stay on the
+ * tree-walker.
+ */
+final class JitCompiler implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String RUNTIME = "com/temma/lox/JitRuntime";
+    private static final String TOKEN = "com/temma/lox/Token";
+    private static final String SELF_CLASS = "com/temma/lox/JitFunction";
+    private static final String METHOD_HANDLE_CLASS = "java/lang/invoke/MethodHandle";
+    private static final String METHOD_HANDLE = "Ljava/lang/invoke/MethodHandle;";
+    private static final String INTERPRETER = "Lcom/temma/lox/Interpreter;";
+    private static final String CALL_DESCRIPTOR =
+          "(Lcom/temma/lox/Interpreter;[Lcom/temma/lox/Upvalue;Lcom/temma/lox/LoxInstance;[Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String UPVALUE = "com/temma/lox/Upvalue";
+    private static final String TAIL_CALL = "(" + INTERPRETER
+            + "Lcom/temma/lox/LoxCallSite;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String TAIL_CALL_METHOD =
+            "(Lcom/temma/lox/LoxInstance;Lcom/temma/lox/LoxFunction;[Ljava/lang/Object;Lcom/temma/lox/Token;)Ljava/lang/Object;";
+
+    private static final int THIS = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int UPVALUES = 2;
+    private static final int SELF = 3;
+    private static final int ARGUMENTS = 4;
+    private static final int CONSTANTS = 5;
+    private static final int FIRST_FREE_LOCAL = 6;
+
+    /** Max offset a 16-bit branch can cover; longer bodies are left interpreted. */
+    private static final int MAX_CODE_LENGTH = Short.MAX_VALUE;
+    private static final int MAX_LOCALS = 256;
+    /**
+     * Most arguments a call through an invoker may pass: a method handle takes
+     * at most 255 parameter slots, and {@code invokeExact} on the invoker needs
+     * one for the handle, one for the interpreter and one for the callee.
+     */
+    private static final int MAX_INVOKER_ARGUMENTS = 251;
+
+    private static int threshold = 0;
+
+    private final ClassFileWriter classFile = new ClassFileWriter();
+    private final Code code = new Code(classFile, FIRST_FREE_LOCAL);
+    private final List<Object> constants = new ArrayList<>();
+    private final List<MethodHandle> invokers = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    private Frame frame;
+    private final boolean isInitializer;
+
+    private JitCompiler(boolean isInitializer) {
+        this.isInitializer = isInitializer;
+    }
+
+    /** Turns the tier on: functions are compiled on their {@code callThreshold}-th call. */
+    static void enable(int callThreshold) {
+        threshold = callThreshold;
+    }
+
+    /** Counts a call and reports whether the function just became hot. */
+    static boolean isHot(Function declaration) {
+        return threshold > 0 && declaration.callCount < threshold && ++declaration.callCount == threshold;
+    }
+
+    /** Returns the compiled body, or null when the function has to stay interpreted. */
+    static JitCompiled compile(Function declaration, boolean isMethod, boolean isInitializer) {
+        try {
+            return new JitCompiler(isInitializer).translate(declaration, isMethod);
+        } catch (Unsupported | ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private JitCompiled translate(Function declaration, boolean isMethod)
+            throws ReflectiveOperationException {
+        code.aload(THIS);
+        code.field(Code.GETFIELD, SELF_CLASS, "k", "[Ljava/lang/Object;");
+        code.astore(CONSTANTS);
+
+        frame = new Frame(declaration.slotCount);
+        int firstParam = 0;
+        if (isMethod) {
+            frame.locals[firstParam++] = SELF;
+        }
+        for (int i = 0; i < declaration.params().size(); i++) {
+            int local = local(firstParam + i);
+            code.aload(ARGUMENTS);
+            code.iconst(i);
+            code.op(Code.AALOAD, -1);
+            code.astore(local);
+        }
+        for (Stmt stmt : declaration.body()) {
+            compileStmt(stmt);
+        }
+        emitReturn();
+
+        if (code.length() > MAX_CODE_LENGTH || code.maxLocals > MAX_LOCALS) {
+            throw new Unsupported();
+        }
+        return define();
+    }
+
+    private JitCompiled define() throws ReflectiveOperationException {
+        Code constructor = new Code(classFile, 2);
+        constructor.aload(0);
+        constructor.invoke(Code.INVOKESPECIAL, OBJECT, "<init>", "()V");
+        constructor.aload(0);
+        constructor.aload(1);
+        constructor.field(Code.PUTFIELD, SELF_CLASS, "k", "[Ljava/lang/Object;");
+        constructor.op(Code.RETURN, 0);
+
+        classFile.addField(ClassFileWriter.ACC_FINAL, "k", "[Ljava/lang/Object;");
+        if (!invokers.isEmpty()) {
+            classFile.addMethod(ClassFileWriter.ACC_STATIC, "<clinit>", "()V", staticInitializer());
+        }
+        classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", constructor);
+        classFile.addMethod(ClassFileWriter.ACC_PUBLIC, "call", CALL_DESCRIPTOR, code);
+        byte[] bytes = classFile.toBytes(SELF_CLASS, OBJECT, "com/temma/lox/JitCompiled");
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClassWithClassData(bytes, invokers.toArray(new MethodHandle[0]), true);
+        try {
+            return (JitCompiled) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants.toArray());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Copies the call site invokers from the class data into static final fields. */
+    private Code staticInitializer() {
+        Code clinit = new Code(classFile, 1);
+        clinit.invoke(Code.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+                "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        clinit.ldc(classFile.string("_"));
+        clinit.ldc(classFile.classRef("[" + METHOD_HANDLE));
+        clinit.invoke(Code.INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+        clinit.typeOp(Code.CHECKCAST, "[" + METHOD_HANDLE);
+        clinit.astore(0);
+        for (int i = 0; i < invokers.size(); i++) {
+            String field = "site" + i;
+            classFile.addField(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC | ClassFileWriter.ACC_FINAL,
+                    field, METHOD_HANDLE);
+            clinit.aload(0);
+            clinit.iconst(i);
+            clinit.op(Code.AALOAD, -1);
+            clinit.field(Code.PUTSTATIC, SELF_CLASS, field, METHOD_HANDLE);
+        }
+        clinit.op(Code.RETURN, 0);
+        return clinit;
+    }
+
+    @Override
+    public Void visitExpressionStmt(ExpressionStmt stmt) {
+        compileExpr(stmt.expression());
+        code.op(Code.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        compileExpr(stmt.value());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitVariableDeclaration(VarDeclaration varDeclaration) {
+        if (varDeclaration.initializer() != null) {
+            compileExpr(varDeclaration.initializer());
+        } else {
+            code.op(Code.ACONST_NULL, 1);
+        }
+        code.astore(local(varDeclaration.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block block) {
+        if (block.hasEnvironment) {
+            throw new Unsupported();
+        }
+        for (Stmt stmt : block.stmts()) {
+            compileStmt(stmt);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(IfStmt ifStmt) {
+        Label elseBranch = new Label();
+        Label end = new Label();
+        condition(ifStmt.condition());
+        code.jump(Code.IFEQ, elseBranch);
+        compileStmt(ifStmt.thenBranch());
+        code.jump(Code.GOTO, end);
+        code.mark(elseBranch);
+        if (ifStmt.elseBranch() != null) {
+            compileStmt(ifStmt.elseBranch());
+        }
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(WhileStmt whileStmt) {
+        Label start = new Label();
+        Label end = new Label();
+        code.mark(start);
+        condition(whileStmt.condition());
+        code.jump(Code.IFEQ, end);
+        compileStmt(whileStmt.body());
+        code.jump(Code.GOTO, start);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(Function function) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(ReturnStmt returnStmt) {
+        if (returnStmt.isTailCall) {
+            tailCall((Call) returnStmt.value());
+            code.op(Code.ARETURN, -1);
+        } else if (returnStmt.value() != null && !isInitializer) {
+            compileExpr(returnStmt.value());
+            code.op(Code.ARETURN, -1);
+        } else {
+            emitReturn();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassDecl(ClassStmt classStmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        compileExpr(expr.left());
+        compileExpr(expr.right());
+        String helper = switch (expr.operator().type) {
+            case PLUS -> "add";
+            case MINUS -> "subtract";
+            case STAR -> "multiply";
+            case SLASH -> "divide";
+            case GREATER -> "greater";
+            case GREATER_EQUAL -> "greaterEqual";
+            case LESS -> "less";
+            case LESS_EQUAL -> "lessEqual";
+            case EQUAL_EQUAL -> "equal";
+            case BANG_EQUAL -> "notEqual";
+            default -> throw new Unsupported();
+        };
+        token(expr.operator());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, helper,
+                "(Ljava/lang/Object;Ljava/lang/Object;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        compileExpr(expr.expression());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        Object value = expr.value();
+        if (value == null) {
+            code.op(Code.ACONST_NULL, 1);
+        } else if (value instanceof Boolean bool) {
+            code.field(Code.GETSTATIC, "java/lang/Boolean", bool ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if (value instanceof Long l) {
+            // Compiled arithmetic is on doubles; see JitRuntime.
+            constant((double) l);
+        } else {
+            constant(value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        compileExpr(expr.right());
+        if (expr.operator().type == TokenType.MINUS) {
+            token(expr.operator());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "negate",
+                    "(Ljava/lang/Object;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        } else {
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable variable) {
+        read(variable, variable.name());
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign assign) {
+        compileExpr(assign.value());
+        if (assign.kind == VariableRef.GLOBAL) {
+            code.aload(INTERPRETER_LOCAL);
+            code.op(Code.SWAP, 0);
+            token(assign.name());
+            code.op(Code.SWAP, 0);
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "setGlobal",
+                    "(" + INTERPRETER + "Lcom/temma/lox/Token;Ljava/lang/Object;)Ljava/lang/Object;");
+        } else if (assign.kind == VariableRef.LOCAL) {
+            code.op(Code.DUP, 1);
+            code.astore(local(assign.slot));
+        } else {
+            code.op(Code.DUP, 1);
+            upvalue(assign);
+            code.op(Code.SWAP, 0);
+            code.field(Code.PUTFIELD, UPVALUE, "value", "Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical logical) {
+        Label end = new Label();
+        compileExpr(logical.left());
+        code.op(Code.DUP, 1);
+        truthy();
+        code.jump(logical.operator().type == TokenType.OR ? Code.IFNE : Code.IFEQ, end);
+        code.op(Code.POP, -1);
+        compileExpr(logical.right());
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call call) {
+        if (call.callee() instanceof GetExpr getExpr) {
+            invoke(getExpr, call);
+        } else if (call.callee() instanceof Super superExpr) {
+            code.aload(INTERPRETER_LOCAL);
+            receiver(superExpr);
+            superclass(superExpr);
+            token(superExpr.method());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "superMethod",
+                    "(Ljava/lang/Object;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxFunction;");
+            arguments(call);
+            token(call.paren());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "invokeMethod", "(" + INTERPRETER
+                    + "Lcom/temma/lox/LoxInstance;Lcom/temma/lox/LoxFunction;[Ljava/lang/Object;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        } else {
+            loadInvoker(call);
+            code.aload(INTERPRETER_LOCAL);
+            compileExpr(call.callee());
+            for (Expr argument : call.arguments()) {
+                compileExpr(argument);
+            }
+            invokeExact(call);
+        }
+        return null;
+    }
+
+    /**
+     * {@code object.name(...)}: if the name reaches a class method it is invoked
+     * on the receiver directly, otherwise the property value is called, matching
+     * the tree-walker's order of evaluation and errors.
+     */
+    private void invoke(GetExpr getExpr, Call call) {
+        Label fieldCall = new Label();
+        Label end = new Label();
+        int cache = constantIndex(new PropertyCache());
+
+        int receiver = code.newLocal();
+        int method = code.newLocal();
+        int callee = code.newLocal();
+
+        compileExpr(getExpr.object());
+        token(getExpr.name());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "receiver",
+                "(Ljava/lang/Object;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxInstance;");
+        code.astore(receiver);
+        loadConstant(cache, "com/temma/lox/PropertyCache");
+        code.aload(receiver);
+        token(getExpr.name());
+        code.invoke(Code.INVOKEVIRTUAL, "com/temma/lox/PropertyCache", "method",
+                "(Lcom/temma/lox/LoxInstance;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxFunction;");
+        code.op(Code.DUP, 1);
+        code.jump(Code.IFNULL, fieldCall);
+
+        code.astore(method);
+        code.aload(INTERPRETER_LOCAL);
+        code.aload(receiver);
+        code.aload(method);
+        arguments(call);
+        token(call.paren());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "invokeMethod", "(" + INTERPRETER
+                + "Lcom/temma/lox/LoxInstance;Lcom/temma/lox/LoxFunction;[Ljava/lang/Object;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        code.jump(Code.GOTO, end);
+
+        code.mark(fieldCall);
+        code.op(Code.POP, -1);
+        code.aload(receiver);
+        loadConstant(cache, "com/temma/lox/PropertyCache");
+        token(getExpr.name());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "getProperty",
+                "(Ljava/lang/Object;Lcom/temma/lox/PropertyCache;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        code.astore(callee);
+        loadInvoker(call);
+        code.aload(INTERPRETER_LOCAL);
+        code.aload(callee);
+        for (Expr argument : call.arguments()) {
+            compileExpr(argument);
+        }
+        invokeExact(call);
+        code.mark(end);
+    }
+
+    /**
+     * A call in tail position, evaluated like {@link #visitCallExpr} but
+     * handing a Lox function back as a {@link TailCall}, as the interpreters
+     * do, so compiled tail recursion also runs in constant stack.
+     */
+    private void tailCall(Call call) {
+        if (call.callee() instanceof GetExpr getExpr) {
+            Label fieldCall = new Label();
+            Label end = new Label();
+            int cache = constantIndex(new PropertyCache());
+            int receiver = code.newLocal();
+
+            compileExpr(getExpr.object());
+            token(getExpr.name());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "receiver",
+                    "(Ljava/lang/Object;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxInstance;");
+            code.astore(receiver);
+            code.aload(receiver);
+            loadConstant(cache, "com/temma/lox/PropertyCache");
+            code.aload(receiver);
+            token(getExpr.name());
+            code.invoke(Code.INVOKEVIRTUAL, "com/temma/lox/PropertyCache", "method",
+                    "(Lcom/temma/lox/LoxInstance;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxFunction;");
+            code.op(Code.DUP, 1);
+            code.jump(Code.IFNULL, fieldCall);
+            arguments(call);
+            token(call.paren());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "tailCallMethod", TAIL_CALL_METHOD);
+            code.jump(Code.GOTO, end);
+
+            code.mark(fieldCall);
+            code.op(Code.POP, -1);
+            code.op(Code.POP, -1);
+            code.aload(INTERPRETER_LOCAL);
+            loadConstant(constantIndex(call.site), "com/temma/lox/LoxCallSite");
+            code.aload(receiver);
+            loadConstant(cache, "com/temma/lox/PropertyCache");
+            token(getExpr.name());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "getProperty",
+                    "(Ljava/lang/Object;Lcom/temma/lox/PropertyCache;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+            arguments(call);
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "tailCall", TAIL_CALL);
+            code.mark(end);
+        } else if (call.callee() instanceof Super superExpr) {
+            receiver(superExpr);
+            superclass(superExpr);
+            token(superExpr.method());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "superMethod",
+                    "(Ljava/lang/Object;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxFunction;");
+            arguments(call);
+            token(call.paren());
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "tailCallMethod", TAIL_CALL_METHOD);
+        } else {
+            code.aload(INTERPRETER_LOCAL);
+            loadConstant(constantIndex(call.site), "com/temma/lox/LoxCallSite");
+            compileExpr(call.callee());
+            arguments(call);
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "tailCall", TAIL_CALL);
+        }
+    }
+
+    /**
+     * Gives the call's {@link LoxCallSite} a static final field, so the invoker
+     * is a constant HotSpot can inline through, with arguments passed positionally.
+     */
+    private void loadInvoker(Call call) {
+        if (call.arguments().size() > MAX_INVOKER_ARGUMENTS) {
+            throw new Unsupported();
+        }
+        code.field(Code.GETSTATIC, SELF_CLASS, "site" + invokers.size(), METHOD_HANDLE);
+        invokers.add(call.site.dynamicInvoker());
+    }
+
+    private void invokeExact(Call call) {
+        String descriptor = "(" + INTERPRETER + "Ljava/lang/Object;"
+                + "Ljava/lang/Object;".repeat(call.arguments().size()) + ")Ljava/lang/Object;";
+        code.invoke(Code.INVOKEVIRTUAL, METHOD_HANDLE_CLASS, "invokeExact", descriptor);
+    }
+
+    private void arguments(Call call) {
+        code.iconst(call.arguments().size());
+        code.typeOp(Code.ANEWARRAY, OBJECT);
+        for (int i = 0; i < call.arguments().size(); i++) {
+            code.op(Code.DUP, 1);
+            code.iconst(i);
+            compileExpr(call.arguments().get(i));
+            code.op(Code.AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(GetExpr getExpr) {
+        compileExpr(getExpr.object());
+        loadConstant(constantIndex(new PropertyCache()), "com/temma/lox/PropertyCache");
+        token(getExpr.name());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "getProperty",
+                "(Ljava/lang/Object;Lcom/temma/lox/PropertyCache;Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(SetExpr setExpr) {
+        compileExpr(setExpr.object());
+        token(setExpr.name());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "fieldOwner",
+                "(Ljava/lang/Object;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxInstance;");
+        loadConstant(constantIndex(new PropertyCache()), "com/temma/lox/PropertyCache");
+        token(setExpr.name());
+        compileExpr(setExpr.value());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "setProperty",
+                "(Lcom/temma/lox/LoxInstance;Lcom/temma/lox/PropertyCache;Lcom/temma/lox/Token;Ljava/lang/Object;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(ThisExpr thisExpr) {
+        read(thisExpr, thisExpr.keyword());
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Super superExpr) {
+        receiver(superExpr);
+        superclass(superExpr);
+        token(superExpr.method());
+        code.invoke(Code.INVOKESTATIC, RUNTIME, "superMethod",
+                "(Ljava/lang/Object;Lcom/temma/lox/Token;)Lcom/temma/lox/LoxFunction;");
+        code.op(Code.SWAP, 0);
+        code.invoke(Code.INVOKEVIRTUAL, "com/temma/lox/LoxFunction", "bind",
+                "(Lcom/temma/lox/LoxInstance;)Lcom/temma/lox/LoxFunction;");
+        return null;
+    }
+
+    /**
+     * Pushes the {@code this} a {@code super} expression binds to, resolved like
+     * any use of {@code this}: in a function nested in the method it is an
+     * upvalue, not the compiled function's own receiver.
+     */
+    private void receiver(Super superExpr) {
+        read(superExpr.receiver, superExpr.keyword());
+        code.typeOp(Code.CHECKCAST, "com/temma/lox/LoxInstance");
+    }
+
+    /** Pushes the superclass, an upvalue of every method using {@code super}. */
+    private void superclass(Super superExpr) {
+        read(superExpr, superExpr.keyword());
+    }
+
+    private void read(VariableRef ref, Token name) {
+        if (ref.kind == VariableRef.GLOBAL) {
+            code.aload(INTERPRETER_LOCAL);
+            token(name);
+            code.invoke(Code.INVOKESTATIC, RUNTIME, "getGlobal",
+                    "(" + INTERPRETER + "Lcom/temma/lox/Token;)Ljava/lang/Object;");
+        } else if (ref.kind == VariableRef.LOCAL) {
+            code.aload(local(ref.slot));
+        } else {
+            upvalue(ref);
+            code.field(Code.GETFIELD, UPVALUE, "value", "Ljava/lang/Object;");
+        }
+    }
+
+    /**
+     * Pushes the box of an upvalue. A compiled body declares no closures, so
+     * none of its own locals is ever {@link VariableRef#BOXED}.
+     */
+    private void upvalue(VariableRef ref) {
+        if (ref.kind != VariableRef.UPVALUE) {
+            throw new Unsupported();
+        }
+        code.aload(UPVALUES);
+        code.iconst(ref.slot);
+        code.op(Code.AALOAD, -1);
+    }
+
+    /** JVM local backing a slot of the frame, allocated on first use. */
+    private int local(int slot) {
+        if (frame.locals[slot] == 0) {
+            frame.locals[slot] = code.newLocal();
+        }
+        return frame.locals[slot];
+    }
+
+    private void condition(Expr condition) {
+        compileExpr(condition);
+        truthy();
+    }
+
+    private void truthy() {
+        code.invoke(Code.INVOKESTATIC, "com/temma/lox/Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+    }
+
+    private void emitReturn() {
+        if (isInitializer) {
+            code.aload(SELF);
+        } else {
+            code.op(Code.ACONST_NULL, 1);
+        }
+        code.op(Code.ARETURN, -1);
+    }
+
+    private void token(Token token) {
+        loadConstant(constantIndex(token), TOKEN);
+    }
+
+    private void constant(Object value) {
+        code.aload(CONSTANTS);
+        code.iconst(constantIndex(value));
+        code.op(Code.AALOAD, -1);
+    }
+
+    private void loadConstant(int index, String type) {
+        code.aload(CONSTANTS);
+        code.iconst(index);
+        code.op(Code.AALOAD, -1);
+        code.typeOp(Code.CHECKCAST, type);
+    }
+
+    private int constantIndex(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        return index;
+    }
+
+    private void compileStmt(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compileExpr(Expr expr) {
+        expr.accept(this);
+    }
+
+    /**
+     * JVM locals backing the slots of the function's frame, 0 while unused.
+     * Blocks of a compiled body never have a frame of their own: their locals
+     * cannot be captured, so the {@link Resolver} put them in this one.
+     */
+    private static final class Frame {
+        final int[] locals;
+
+        Frame(int slotCount) {
+            this.locals = new int[slotCount];
+        }
+    }
+
+    private static final class Unsupported extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
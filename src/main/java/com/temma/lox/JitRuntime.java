@@ -0,0 +1,179 @@
+package com.temma.lox;
+
+/**
+ * Operations called from JIT-compiled function bodies. Each one performs the
+ * same checks and raises the same errors as the matching {@link Interpreter}
+ * visitor, so compiled code needs no guards of its own.
+ *
+ * <p>Arithmetic here always yields a double, even for two exact integers (see
+ * {@link Numbers}): compiled code relies on HotSpot to remove the boxes
+ * passed between these calls, which it cannot do for a result that is a
+ * {@link Long} on one path and a {@link Double} on another.
+ */
+final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double d1 && right instanceof Double d2) {
+            return d1 + d2;
+        } else if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.toDouble(left) + Numbers.toDouble(right);
+        } else if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right, operator);
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a - b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) - Numbers.toDouble(right);
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a * b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) * Numbers.toDouble(right);
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a / b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) / Numbers.toDouble(right);
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a > b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) > Numbers.toDouble(right);
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a >= b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) >= Numbers.toDouble(right);
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a < b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) < Numbers.toDouble(right);
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a <= b;
+        }
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.toDouble(left) <= Numbers.toDouble(right);
+    }
+
+    static Object equal(Object left, Object right, Token operator) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right, Token operator) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object negate(Object operand, Token operator) {
+        if (operand instanceof Double d) {
+            return -d;
+        } else if (operand instanceof Long l) {
+            return -(double) l;
+        }
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static Object not(Object operand) {
+        return !Interpreter.isTruthy(operand);
+    }
+
+    static Object getGlobal(Interpreter interpreter, Token name) {
+        return interpreter.globals.get(name);
+    }
+
+    static Object setGlobal(Interpreter interpreter, Token name, Object value) {
+        interpreter.globals.assign(name, value);
+        return value;
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static LoxInstance receiver(Object object, Token name) {
+        if (object instanceof LoxInstance instance) {
+            return instance;
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static Object invokeMethod(Interpreter interpreter, LoxInstance receiver, LoxFunction method,
+            Object[] arguments, Token paren) {
+        checkArity(method, arguments, paren);
+        return method.invoke(interpreter, receiver, arguments);
+    }
+
+    /** A method call in tail position, handed back to the caller's trampoline. */
+    static Object tailCallMethod(LoxInstance receiver, LoxFunction method, Object[] arguments, Token paren) {
+        checkArity(method, arguments, paren);
+        return new TailCall(method, receiver, arguments);
+    }
+
+    /** Any other call in tail position; only Lox functions are handed back. */
+    static Object tailCall(Interpreter interpreter, LoxCallSite site, Object callee, Object[] arguments) {
+        if (callee instanceof LoxFunction function && arguments.length == function.arity()) {
+            return new TailCall(function, function.receiver(), arguments);
+        }
+        return site.call(interpreter, callee, arguments);
+    }
+
+    private static void checkArity(LoxFunction method, Object[] arguments, Token paren) {
+        if (arguments.length != method.arity()) {
+            throw new RuntimeError(paren, "Expect " + method.arity() +
+                    " arguments but got " + arguments.length + ".");
+        }
+    }
+
+    static LoxFunction superMethod(Object superclass, Token name) {
+        LoxFunction method = ((LoxClass) superclass).findMethod(name.symbol);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        return method;
+    }
+
+    static Object getProperty(Object object, PropertyCache cache, Token name) {
+        if (object instanceof LoxInstance instance) {
+            return cache.get(instance, name);
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static LoxInstance fieldOwner(Object object, Token name) {
+        if (object instanceof LoxInstance instance) {
+            return instance;
+        }
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object setProperty(LoxInstance instance, PropertyCache cache, Token name, Object value) {
+        cache.set(instance, name, value);
+        return value;
+    }
+}
@@ -0,0 +1,109 @@
+package com.temma.lox;
+
+import java.util.Arrays;
+
+/**
+ * Interned lexemes of identifiers, keywords and operators. Lookups go straight
+ * from a range of the scanner's character buffer, so probing for a keyword or
+ * a known identifier allocates nothing, and every occurrence of a name shares
+ * one {@link Symbol}. Literal lexemes are not kept here: a data script's
+ * strings and numbers are mostly unique and would only pile up. String
+ * literals are shared through {@link Symbol#literal} instead, which lets go
+ * of them once no code refers to them.
+ */
+final class LexemeTable {
+
+    private int[] slots = new int[256];
+    private Symbol[] symbols = new Symbol[128];
+    private TokenType[] types = new TokenType[128];
+    private int count = 0;
+
+    LexemeTable() {
+        keyword("and", TokenType.AND);
+        keyword("class", TokenType.CLASS);
+        keyword("else", TokenType.ELSE);
+        keyword("false", TokenType.FALSE);
+        keyword("for", TokenType.FOR);
+        keyword("fun", TokenType.FUN);
+        keyword("if", TokenType.IF);
+        keyword("nil", TokenType.NIL);
+        keyword("or", TokenType.OR);
+        keyword("print", TokenType.PRINT);
+        keyword("return", TokenType.RETURN);
+        keyword("super", TokenType.SUPER);
+        keyword("this", TokenType.THIS);
+        keyword("true", TokenType.TRUE);
+        keyword("var", TokenType.VAR);
+        keyword("while", TokenType.WHILE);
+    }
+
+    private void keyword(String lexeme, TokenType type) {
+        types[intern(lexeme.toCharArray(), 0, lexeme.length())] = type;
+    }
+
+    /** Returns the id of the lexeme in {@code chars[from, from + length)}, adding it if new. */
+    int intern(char[] chars, int from, int length) {
+        int hash = 0;
+        for (int i = from; i < from + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = slots.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int entry = slots[i];
+            if (entry == 0) {
+                return add(i, new String(chars, from, length));
+            }
+            if (matches(symbols[entry - 1].name, chars, from, length)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    Symbol symbol(int id) {
+        return symbols[id];
+    }
+
+    /** The keyword's type, or {@link TokenType#IDENTIFIER} for any other lexeme. */
+    TokenType type(int id) {
+        return types[id];
+    }
+
+    private int add(int slot, String lexeme) {
+        if (count == symbols.length) {
+            symbols = Arrays.copyOf(symbols, count * 2);
+            types = Arrays.copyOf(types, count * 2);
+        }
+        int id = count++;
+        symbols[id] = Symbol.of(lexeme);
+        types[id] = TokenType.IDENTIFIER;
+        slots[slot] = id + 1;
+        if (count * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < count; id++) {
+            int i = symbols[id].hashCode() & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+    }
+
+    private static boolean matches(String lexeme, char[] chars, int from, int length) {
+        if (lexeme.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (lexeme.charAt(i) != chars[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
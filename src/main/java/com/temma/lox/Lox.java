@@ -3,45 +3,105 @@ package com.temma.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
+import com.temma.lox.vm.FunctionProto;
+import com.temma.lox.vm.VM;
+import com.temma.lox.vm.VmError;
+
 public class Lox {
 
 	static boolean hadError = false;
 	static boolean hadRuntimeError = false;
-	private static final Interpreter INTERPRETER = new Interpreter();
+	private static Interpreter interpreter;
+	private static VM virtualMachine;
+	private static Engine engine = Engine.TREE;
+	private static boolean optimize = false;
+	private static boolean lazy = false;
+	private static boolean stream = false;
+	private static boolean lineBuffered = false;
+
+	/** Calls after which a function is compiled to JVM bytecode when {@code --jit} is on. */
+	private static final int JIT_THRESHOLD = 1000;
 
 	public static void main(String[] args) throws IOException {
-		if (args.length > 1) {
-			System.out.println("Usage: jlox [script]");
-			System.exit(64);
-		} else if (args.length == 1) {
-			runFile(args[0]);
+		String script = null;
+		for (String arg : args) {
+			if (arg.equals("--engine=tree")) {
+				engine = Engine.TREE;
+			} else if (arg.equals("--engine=vm")) {
+				engine = Engine.VM;
+			} else if (arg.equals("--engine=nodes")) {
+				engine = Engine.NODES;
+			} else if (arg.equals("--optimize")) {
+				optimize = true;
+			} else if (arg.equals("--lazy")) {
+				lazy = true;
+			} else if (arg.equals("--stream")) {
+				stream = true;
+			} else if (arg.equals("--line-buffered")) {
+				lineBuffered = true;
+			} else if (arg.equals("--simd")) {
+				useVectorRuns();
+			} else if (arg.equals("--jit")) {
+				JitCompiler.enable(JIT_THRESHOLD);
+			} else if (arg.matches("--jit=[1-9][0-9]{0,8}")) {
+				JitCompiler.enable(Integer.parseInt(arg.substring("--jit=".length())));
+			} else if (arg.startsWith("--") || script != null) {
+				usage();
+			} else {
+				script = arg;
+			}
+		}
+		if (!lineBuffered) {
+			Output.buffer();
+		}
+		interpreter = engine == Engine.NODES ? new NodeInterpreter() : new Interpreter();
+		if (script != null) {
+			runFile(script);
 		} else {
 			runPrompt();
 		}
 	}
 
+	private static void usage() {
+		System.out.println("Usage: jlox [--engine=tree|nodes|vm] [--optimize] [--lazy] [--stream] [--jit[=calls]] [--line-buffered] [--simd] [script]");
+		System.exit(64);
+	}
+
+	/** Scans with the Vector API if it was built and enabled, otherwise says so and keeps the scalar scanner. */
+	private static void useVectorRuns() {
+		CharRuns vector = CharRuns.vector();
+		if (vector == null) {
+			System.err.println("--simd needs the vector build run with --add-modules jdk.incubator.vector; scanning without it.");
+			return;
+		}
+		Scanner.useRuns(vector);
+	}
+
 	private static void runPrompt() throws IOException {
 		InputStreamReader input = new InputStreamReader(System.in);
 		BufferedReader reader = new BufferedReader(input);
 		for (;;) {
 			System.out.print("> ");
+			Output.flush();
 			String line = reader.readLine();
 			if (line == null) {
 				break;
 			}
-			run(line);
+			run(new Scanner(line), false);
 			hadError = false;
 		}
 	}
 
 	private static void runFile(String path) throws IOException {
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()));
+		try (Reader reader = new InputStreamReader(Files.newInputStream(Paths.get(path)), Charset.defaultCharset())) {
+			run(new Scanner(reader), stream);
+		}
 
 		if (hadError) {
 			System.exit(65);
@@ -51,25 +111,117 @@ public class Lox {
 		}
 	}
 
-	private static void run(String s) {
-		Scanner scanner = new Scanner(s);
-		List<Token> tokens = scanner.scanTokens();
-		Parser parser = new Parser(tokens);
-		List<Stmt> statements = parser.parse();
+	private static void run(Scanner scanner, boolean streaming) {
+		// The VM compiles every function up front, so it has no use for deferred bodies.
+		Parser parser = new Parser(scanner, lazy && engine != Engine.VM);
+		if (streaming && engine != Engine.VM) {
+			runStreaming(parser);
+			return;
+		}
+		List<Stmt> parsed = parser.parse();
 		if (hadError) {
 			return;
 		}
-		Resolver resolver = new Resolver(INTERPRETER);
+		if (optimize) {
+			// Checked as written, so errors in code the Optimizer drops are still reported.
+			new Resolver().check(parsed);
+			if (hadError) {
+				return;
+			}
+		}
+		List<Stmt> statements = optimize ? new Optimizer().optimize(parsed) : parsed;
+		Resolver resolver = new Resolver();
 		resolver.resolve(statements);
 		if (hadError) {
 			return;
 		}
-		INTERPRETER.interpret(statements);
+		if (engine == Engine.VM) {
+			runOnVm(statements);
+			return;
+		}
+		CallStack.onNewSegment(() -> {
+			interpreter.interpret(statements);
+			return null;
+		});
+	}
+
+	/**
+	 * Runs each top-level statement as soon as it is parsed, rather than after
+	 * the whole script is. Once an error is reported nothing more runs, but
+	 * the rest is still checked: resolved until the first syntax error, which
+	 * hides resolution errors as it does for a whole script, and parsed to
+	 * the end. A runtime error ends the script.
+	 */
+	private static void runStreaming(Parser parser) {
+		CallStack.onNewSegment(() -> {
+			boolean hadSyntaxError = false;
+			while (parser.hasNext() && !hadRuntimeError) {
+				Stmt statement = parser.next();
+				hadSyntaxError |= statement == null;
+				if (hadSyntaxError) {
+					continue;
+				}
+				List<Stmt> statements = List.of(statement);
+				if (optimize) {
+					new Resolver().check(statements);
+					if (hadError) {
+						continue;
+					}
+					statements = new Optimizer().optimize(statements);
+				}
+				new Resolver().resolve(statements);
+				if (!hadError) {
+					interpreter.interpret(statements);
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Parses, optimizes and resolves the body of a function on its first call
+	 * under {@code --lazy}. Errors in it are reported as they would have been
+	 * up front, then stop the program at the call.
+	 */
+	static void parseDeferred(Function function) {
+		List<Stmt> body = new Parser(function.deferredBody.rewind(), false).parseBody();
+		if (!hadError && optimize) {
+			new Resolver().checkDeferred(function, body);
+			if (!hadError) {
+				body = new Optimizer().optimizeBody(body);
+			}
+		}
+		if (!hadError) {
+			new Resolver().resolveDeferred(function, body);
+		}
+		if (hadError) {
+			throw new RuntimeError(function.name(), "Can't run a function whose body has errors.");
+		}
+		function.parsedBody(body);
+	}
+
+	private static void runOnVm(List<Stmt> statements) {
+		FunctionProto script = new Compiler().compile(statements);
+		if (hadError) {
+			return;
+		}
+		if (virtualMachine == null) {
+			virtualMachine = new VM();
+		}
+		try {
+			virtualMachine.interpret(script);
+		} catch (VmError error) {
+			runtimeError(error.getMessage(), error.line());
+		}
 	}
 
 	static void runtimeError(RuntimeError error) {
-		System.err.println(error.getMessage() +
-			"\n[line " + error.token.line + "]");
+		runtimeError(error.getMessage(), error.token.line);
+	}
+
+	static void runtimeError(String message, int line) {
+		Output.flush();
+		System.err.println(message + "\n[line " + line + "]");
 		hadRuntimeError = true;
 	}
 
@@ -86,8 +238,13 @@ public class Lox {
 	}
 
 	static void report(int line, String where, String message) {
+		Output.flush();
 		System.err.println("[line " + line + "] Error" + where + ": " + message);
 		hadError = true;
 	}
 
+	private enum Engine {
+		TREE, NODES, VM
+	}
+
 }
@@ -0,0 +1,195 @@
+package com.temma.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+/**
+ * Call site of one {@link Call} expression, linked to the callee it last saw.
+ * The site's method type takes the arguments positionally; its target is a
+ * guard on the callee (the declaration for functions, so closures and bound
+ * methods of one declaration share a link, the object itself for classes and
+ * natives) in front of a handle that enters the callee directly, with the
+ * callable and arity checks done once at link time. A guard miss relinks the
+ * site; sites that keep changing target are linked to the generic path for
+ * good, like a megamorphic {@link PropertyCache}.
+ */
+final class LoxCallSite {
+
+    private static final int MAX_RELINKS = 8;
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle CALL_GENERIC;
+    private static final MethodHandle INVOKE_FUNCTION;
+    private static final MethodHandle INSTANTIATE;
+    private static final MethodHandle CALL_NATIVE;
+    private static final MethodHandle IS_DECLARATION;
+    private static final MethodHandle IS_SAME;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType call = MethodType.methodType(Object.class, Interpreter.class, Object.class, Object[].class);
+        try {
+            RELINK = lookup.findVirtual(LoxCallSite.class, "relink", call);
+            CALL_GENERIC = lookup.findVirtual(LoxCallSite.class, "callGeneric", call);
+            INVOKE_FUNCTION = lookup.findStatic(LoxCallSite.class, "invokeFunction", call);
+            INSTANTIATE = lookup.findVirtual(LoxClass.class, "instantiate",
+                    MethodType.methodType(LoxInstance.class, Interpreter.class, Object[].class));
+            CALL_NATIVE = lookup.findStatic(LoxCallSite.class, "callNative",
+                    MethodType.methodType(Object.class, LoxCallable.class, Interpreter.class, Object[].class));
+            IS_DECLARATION = lookup.findStatic(LoxCallSite.class, "isDeclaration",
+                    MethodType.methodType(boolean.class, Function.class, Object.class));
+            IS_SAME = lookup.findStatic(LoxCallSite.class, "isSame",
+                    MethodType.methodType(boolean.class, Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Token paren;
+    private final int argumentCount;
+    private MutableCallSite site;
+    private MethodHandle relinkHandle;
+
+    /** What the guard compares against: a function's declaration, otherwise the callee. */
+    private Object linked;
+    private LoxCallable linkedCallee;
+    private int relinks = 0;
+    private boolean megamorphic = false;
+
+    LoxCallSite(Token paren, int argumentCount) {
+        this.paren = paren;
+        this.argumentCount = argumentCount;
+    }
+
+    /**
+     * Handle of type {@code (Interpreter, Object callee, Object... arguments)Object}
+     * always running the site's current target. Compiled code holds it in a
+     * constant, letting HotSpot inline the linked callee.
+     */
+    MethodHandle dynamicInvoker() {
+        if (site == null) {
+            MethodType type = MethodType.genericMethodType(argumentCount + 1)
+                    .insertParameterTypes(0, Interpreter.class);
+            site = new MutableCallSite(type);
+            relinkHandle = adapt(RELINK.bindTo(this));
+            site.setTarget(target());
+        }
+        return site.dynamicInvoker();
+    }
+
+    /**
+     * Entry point of the interpreters. They evaluate the same guard as the
+     * linked handle directly: running a handle that is not a compile-time
+     * constant costs more than the guard saves and deepens the Java stack by
+     * several frames per Lox call.
+     */
+    Object call(Interpreter interpreter, Object callee, Object[] arguments) {
+        if (callee instanceof LoxFunction function && function.declaration() == linked) {
+            return function.invoke(interpreter, function.receiver(), arguments);
+        }
+        if (linkedCallee != null && callee == linked) {
+            return dispatch(linkedCallee, interpreter, arguments);
+        }
+        return relink(interpreter, callee, arguments);
+    }
+
+    private Object relink(Interpreter interpreter, Object callee, Object[] arguments) {
+        LoxCallable function = check(callee, arguments);
+        if (megamorphic) {
+            return dispatch(function, interpreter, arguments);
+        }
+        if (++relinks > MAX_RELINKS) {
+            megamorphic = true;
+            linked = null;
+            linkedCallee = null;
+        } else {
+            linked = function instanceof LoxFunction loxFunction ? loxFunction.declaration() : function;
+            linkedCallee = function;
+        }
+        if (site != null) {
+            site.setTarget(target());
+        }
+        return dispatch(function, interpreter, arguments);
+    }
+
+    private MethodHandle target() {
+        if (megamorphic) {
+            return adapt(CALL_GENERIC.bindTo(this));
+        }
+        if (linkedCallee == null) {
+            return relinkHandle;
+        }
+        return MethodHandles.guardWithTest(guard(linkedCallee), link(linkedCallee), relinkHandle);
+    }
+
+    private Object callGeneric(Interpreter interpreter, Object callee, Object[] arguments) {
+        return dispatch(check(callee, arguments), interpreter, arguments);
+    }
+
+    private LoxCallable check(Object callee, Object[] arguments) {
+        if (!(callee instanceof LoxCallable function)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expect " + function.arity() +
+                    " arguments but got " + arguments.length + ".");
+        }
+        return function;
+    }
+
+    /** Guard of a link, taking the site's leading (interpreter, callee) parameters. */
+    private MethodHandle guard(LoxCallable function) {
+        MethodHandle test = function instanceof LoxFunction loxFunction
+                ? IS_DECLARATION.bindTo(loxFunction.declaration())
+                : IS_SAME.bindTo(function);
+        return MethodHandles.dropArguments(test, 0, Interpreter.class);
+    }
+
+    private MethodHandle link(LoxCallable function) {
+        MethodHandle target;
+        if (function instanceof LoxFunction) {
+            target = INVOKE_FUNCTION;
+        } else if (function instanceof LoxClass klass) {
+            target = MethodHandles.dropArguments(INSTANTIATE.bindTo(klass)
+                    .asType(MethodType.methodType(Object.class, Interpreter.class, Object[].class)), 1, Object.class);
+        } else {
+            target = MethodHandles.dropArguments(CALL_NATIVE.bindTo(function), 1, Object.class);
+        }
+        return adapt(target);
+    }
+
+    /** Turns an (interpreter, callee, Object[]) handle into the site's positional type. */
+    private MethodHandle adapt(MethodHandle target) {
+        return target.asCollector(Object[].class, argumentCount);
+    }
+
+    private static Object dispatch(LoxCallable function, Interpreter interpreter, Object[] arguments) {
+        if (function instanceof LoxFunction loxFunction) {
+            return loxFunction.invoke(interpreter, loxFunction.receiver(), arguments);
+        }
+        if (function instanceof LoxClass klass) {
+            return klass.instantiate(interpreter, arguments);
+        }
+        return callNative(function, interpreter, arguments);
+    }
+
+    private static Object invokeFunction(Interpreter interpreter, Object callee, Object[] arguments) {
+        LoxFunction function = (LoxFunction) callee;
+        return function.invoke(interpreter, function.receiver(), arguments);
+    }
+
+    private static Object callNative(LoxCallable function, Interpreter interpreter, Object[] arguments) {
+        return function.call(interpreter, Arrays.asList(arguments));
+    }
+
+    private static boolean isDeclaration(Function declaration, Object callee) {
+        return callee instanceof LoxFunction function && function.declaration() == declaration;
+    }
+
+    private static boolean isSame(Object expected, Object callee) {
+        return expected == callee;
+    }
+}
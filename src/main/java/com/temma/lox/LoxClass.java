@@ -1,5 +1,6 @@
 package com.temma.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,12 +8,27 @@ class LoxClass implements LoxCallable {
 
     final String name;
     final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
 
-    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    /** Own and inherited methods, flattened once so lookup never walks the superclass chain. */
+    private final Map<Symbol, LoxFunction> methods;
+    private final LoxFunction initializer;
+    private final int arity;
+    final Shape rootShape = Shape.root();
+
+    /** Largest field count seen on an instance so far, used to presize new instances. */
+    int instanceSize = 0;
+
+    LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
+        Map<Symbol, LoxFunction> flattened = new HashMap<>();
+        if (superclass != null) {
+            flattened.putAll(superclass.methods);
+        }
+        flattened.putAll(methods);
+        this.methods = Map.copyOf(flattened);
+        this.initializer = this.methods.get(Symbol.INIT);
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     @Override
@@ -22,30 +38,23 @@ class LoxClass implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        return instantiate(interpreter, arguments.toArray());
+    }
+
+    LoxInstance instantiate(Interpreter interpreter, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-        	initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-    	LoxFunction initializer = findMethod("init");
-    	if (initializer != null) {
-    		return initializer.arity();
-    	}
-        return 0;
+        return arity;
     }
 
-    public LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-        return null;
+    public LoxFunction findMethod(Symbol name) {
+        return methods.get(name);
     }
 }
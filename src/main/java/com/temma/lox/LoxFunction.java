@@ -2,26 +2,72 @@ package com.temma.lox;
 
 import java.util.List;
 
-record LoxFunction(Function declaration, Environment closure, boolean isInitializer) implements LoxCallable {
+/**
+ * A function or method value. It holds only the boxes of the variables it
+ * captured, not the frames they were declared in. Methods keep {@code this}
+ * in slot 0 of their own call frame, so a bound method is just the method
+ * plus its receiver and invoking a method straight off an instance needs no
+ * bound object at all.
+ */
+record LoxFunction(Function declaration, Upvalue[] upvalues, boolean isInitializer, LoxInstance receiver)
+		implements LoxCallable {
+
+	LoxFunction(Function declaration, Upvalue[] upvalues, boolean isInitializer) {
+		this(declaration, upvalues, isInitializer, null);
+	}
 
 	@Override
 	public Object call(Interpreter interpreter, List<Object> arguments) {
-		Environment environment = new Environment(closure);
-		for (int i = 0; i < declaration.params().size(); i++) {
-			environment.define(declaration.params().get(i).lexeme, arguments.get(i));
-		}
+		return invoke(interpreter, receiver, arguments.toArray());
+	}
+
+	Object invoke(Interpreter interpreter, LoxInstance self, Object[] arguments) {
+		int depth = ++interpreter.callDepth;
 		try {
-			interpreter.executeBlock(declaration.body(), environment);
-		} catch (Return returnValue) {
-			if (isInitializer) {
-				return closure.getAt(0, "this");
+			if (CallStack.isSegmentBoundary(depth)) {
+				CallStack.checkDepth(depth, declaration.name());
+				return CallStack.onNewSegment(() -> trampoline(interpreter, self, arguments));
 			}
-			return returnValue.value;
+			return trampoline(interpreter, self, arguments);
+		} finally {
+			interpreter.callDepth--;
+		}
+	}
+
+	/** Runs this call, then every tail call handed back by it, in one Java frame. */
+	private Object trampoline(Interpreter interpreter, LoxInstance self, Object[] arguments) {
+		Object result = execute(interpreter, self, arguments);
+		while (result instanceof TailCall call) {
+			result = call.function().execute(interpreter, call.self(), call.arguments());
+		}
+		return result;
+	}
+
+	private Object execute(Interpreter interpreter, LoxInstance self, Object[] arguments) {
+		if (declaration.isDeferred()) {
+			Lox.parseDeferred(declaration);
+		}
+		if (declaration.compiled == null && JitCompiler.isHot(declaration)) {
+			declaration.compiled = JitCompiler.compile(declaration, self != null, isInitializer);
+		}
+		if (declaration.compiled != null) {
+			return declaration.compiled.call(interpreter, upvalues, self, arguments);
+		}
+		Environment environment = new Environment(declaration.slotCount, upvalues);
+		if (self != null) {
+			environment.define(self);
+		}
+		for (Object argument : arguments) {
+			environment.define(argument);
+		}
+		for (int slot : declaration.boxedSlots) {
+			environment.set(slot, new Upvalue(environment.get(slot)));
 		}
+		Object completion = interpreter.executeBody(declaration, environment);
 		if (isInitializer) {
-			return closure.getAt(0, "this");
+			return self;
 		}
-		return null;
+		return completion == Interpreter.NORMAL ? null : completion;
 	}
 
 	@Override
@@ -30,9 +76,7 @@ record LoxFunction(Function declaration, Environment closure, boolean isInitiali
 	}
 	
 	LoxFunction bind(LoxInstance instance) {
-		Environment environment = new Environment(closure);
-		environment.define("this", instance);
-		return new LoxFunction(declaration, environment, isInitializer);
+		return new LoxFunction(declaration, upvalues, isInitializer, instance);
 	}
 
 	@Override
@@ -1,15 +1,17 @@
 package com.temma.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
 
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    Shape shape;
+    Object[] values;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.values = new Object[klass.instanceSize];
     }
 
     @Override
@@ -17,18 +19,14 @@ class LoxInstance {
         return klass.name + " instance";
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    /** Moves to {@code next}, a one-field transition of the current shape, storing the new field. */
+    void addField(Shape next, Object value) {
+        int offset = shape.fieldCount();
+        if (offset == values.length) {
+            values = Arrays.copyOf(values, offset + 1);
+            klass.instanceSize = Math.max(klass.instanceSize, offset + 1);
         }
-        LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) {
-            return method.bind(this);
-        }
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
-    }
-
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        values[offset] = value;
+        shape = next;
     }
 }
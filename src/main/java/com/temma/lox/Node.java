@@ -0,0 +1,46 @@
+package com.temma.lox;
+
+/**
+ * Base of the executable node tree. Nodes know their parent so that a node can
+ * rewrite itself, swapping in a version specialized for the values it has
+ * actually seen (see {@link BinaryNode}).
+ */
+abstract class Node {
+
+    Node parent;
+
+    final <T extends Node> T adopt(T child) {
+        if (child != null) {
+            child.parent = this;
+        }
+        return child;
+    }
+
+    final <T extends Node> T[] adoptAll(T[] children) {
+        for (T child : children) {
+            adopt(child);
+        }
+        return children;
+    }
+
+    /** Puts {@code replacement} where this node sits in its parent and returns it. */
+    final <T extends Node> T replace(T replacement) {
+        replacement.parent = parent;
+        parent.replaceChild(this, replacement);
+        return replacement;
+    }
+
+    void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no replaceable children.");
+    }
+
+    static ExprNode swap(ExprNode child, Node oldChild, Node newChild) {
+        return child == oldChild ? (ExprNode) newChild : child;
+    }
+
+    static void swapAll(ExprNode[] children, Node oldChild, Node newChild) {
+        for (int i = 0; i < children.length; i++) {
+            children[i] = swap(children[i], oldChild, newChild);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.temma.lox;
+
+import java.util.List;
+
+import com.temma.lox.ExprNodes.AbstractCallNode;
+import com.temma.lox.ExprNodes.AndNode;
+import com.temma.lox.ExprNodes.BoxedAssignNode;
+import com.temma.lox.ExprNodes.BoxedReadNode;
+import com.temma.lox.ExprNodes.CallNode;
+import com.temma.lox.ExprNodes.GetNode;
+import com.temma.lox.ExprNodes.GlobalAssignNode;
+import com.temma.lox.ExprNodes.GlobalReadNode;
+import com.temma.lox.ExprNodes.InvokeNode;
+import com.temma.lox.ExprNodes.LiteralNode;
+import com.temma.lox.ExprNodes.LocalAssignNode;
+import com.temma.lox.ExprNodes.LocalReadNode;
+import com.temma.lox.ExprNodes.NegateNode;
+import com.temma.lox.ExprNodes.NotNode;
+import com.temma.lox.ExprNodes.OrNode;
+import com.temma.lox.ExprNodes.SetNode;
+import com.temma.lox.ExprNodes.SuperInvokeNode;
+import com.temma.lox.ExprNodes.SuperNode;
+import com.temma.lox.ExprNodes.UpvalueAssignNode;
+import com.temma.lox.ExprNodes.UpvalueReadNode;
+import com.temma.lox.StmtNodes.BlockNode;
+import com.temma.lox.StmtNodes.ClassNode;
+import com.temma.lox.StmtNodes.ExpressionNode;
+import com.temma.lox.StmtNodes.FunctionNode;
+import com.temma.lox.StmtNodes.IfNode;
+import com.temma.lox.StmtNodes.InlineBlockNode;
+import com.temma.lox.StmtNodes.PrintNode;
+import com.temma.lox.StmtNodes.ReturnNode;
+import com.temma.lox.StmtNodes.VarNode;
+import com.temma.lox.StmtNodes.WhileNode;
+
+/**
+ * Turns resolved statements into the executable node tree run by
+ * {@link NodeInterpreter}. Function bodies are not descended into; they are
+ * built on their first call.
+ */
+class NodeBuilder implements ExprVisitor<ExprNode>, StmtVisitor<StmtNode> {
+
+    private final Interpreter interpreter;
+    private int scopeDepth;
+
+    /** @param scopeDepth 0 for top-level code, 1 for a function body */
+    NodeBuilder(Interpreter interpreter, int scopeDepth) {
+        this.interpreter = interpreter;
+        this.scopeDepth = scopeDepth;
+    }
+
+    StmtNode[] build(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = buildStmt(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode buildStmt(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode buildExpr(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private ExprNode[] buildAll(List<Expr> exprs) {
+        ExprNode[] nodes = new ExprNode[exprs.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = buildExpr(exprs.get(i));
+        }
+        return nodes;
+    }
+
+    private Symbol globalName(Token name) {
+        return scopeDepth == 0 ? name.symbol : null;
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(ExpressionStmt stmt) {
+        return new ExpressionNode(buildExpr(stmt.expression()));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Print stmt) {
+        return new PrintNode(buildExpr(stmt.value()));
+    }
+
+    @Override
+    public StmtNode visitVariableDeclaration(VarDeclaration varDeclaration) {
+        return new VarNode(globalName(varDeclaration.name()), varDeclaration.slot, varDeclaration.isCaptured,
+                buildExpr(varDeclaration.initializer()));
+    }
+
+    @Override
+    public StmtNode visitBlock(Block block) {
+        scopeDepth++;
+        StmtNode[] body = build(block.stmts());
+        scopeDepth--;
+        if (block.hasEnvironment) {
+            return new BlockNode(block.slotCount, body);
+        }
+        if (body.length == 1) {
+            return body[0];
+        }
+        return new InlineBlockNode(body);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(IfStmt ifStmt) {
+        ExprNode condition = buildExpr(ifStmt.condition());
+        StmtNode thenBranch = buildStmt(ifStmt.thenBranch());
+        StmtNode elseBranch = ifStmt.elseBranch() == null ? null : buildStmt(ifStmt.elseBranch());
+        return new IfNode(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(WhileStmt whileStmt) {
+        ExprNode condition = buildExpr(whileStmt.condition());
+        return new WhileNode(condition, buildStmt(whileStmt.body()));
+    }
+
+    @Override
+    public StmtNode visitFunctionDecl(Function function) {
+        return new FunctionNode(globalName(function.name()), function);
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(ReturnStmt returnStmt) {
+        ExprNode value = buildExpr(returnStmt.value());
+        if (returnStmt.isTailCall) {
+            ((AbstractCallNode) value).markTailCall();
+        }
+        return new ReturnNode(value);
+    }
+
+    @Override
+    public StmtNode visitClassDecl(ClassStmt classStmt) {
+        Variable superclass = classStmt.superclass();
+        return new ClassNode(globalName(classStmt.name()), classStmt, buildExpr(superclass));
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Binary expr) {
+        return BinaryNode.create(buildExpr(expr.left()), expr.operator(), buildExpr(expr.right()));
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Grouping expr) {
+        return buildExpr(expr.expression());
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Literal expr) {
+        return new LiteralNode(expr.value());
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Unary expr) {
+        if (expr.operator().type == TokenType.MINUS) {
+            return new NegateNode(expr.operator(), buildExpr(expr.right()));
+        }
+        return new NotNode(buildExpr(expr.right()));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Variable variable) {
+        return read(variable.name(), variable);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Assign assign) {
+        ExprNode value = buildExpr(assign.value());
+        switch (assign.kind) {
+            case VariableRef.LOCAL:
+                return new LocalAssignNode(assign.slot, value);
+            case VariableRef.BOXED:
+                return new BoxedAssignNode(assign.slot, value);
+            case VariableRef.UPVALUE:
+                return new UpvalueAssignNode(assign.slot, value);
+            default:
+                return new GlobalAssignNode(assign.name(), interpreter.globals, value);
+        }
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Logical logical) {
+        if (logical.operator().type == TokenType.OR) {
+            return new OrNode(buildExpr(logical.left()), buildExpr(logical.right()));
+        }
+        return new AndNode(buildExpr(logical.left()), buildExpr(logical.right()));
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Call call) {
+        if (call.callee() instanceof GetExpr getExpr) {
+            return new InvokeNode(interpreter, buildExpr(getExpr.object()), getExpr.name(), call.paren(),
+                    buildAll(call.arguments()));
+        }
+        if (call.callee() instanceof Super superExpr) {
+            return new SuperInvokeNode(interpreter, buildExpr(superExpr.receiver), read(superExpr.keyword(), superExpr),
+                    superExpr.method(), call.paren(), buildAll(call.arguments()));
+        }
+        return new CallNode(interpreter, buildExpr(call.callee()), call.paren(), buildAll(call.arguments()));
+    }
+
+    @Override
+    public ExprNode visitGetExpr(GetExpr getExpr) {
+        return new GetNode(buildExpr(getExpr.object()), getExpr.name());
+    }
+
+    @Override
+    public ExprNode visitSetExpr(SetExpr setExpr) {
+        return new SetNode(buildExpr(setExpr.object()), setExpr.name(), buildExpr(setExpr.value()));
+    }
+
+    @Override
+    public ExprNode visitThisExpr(ThisExpr thisExpr) {
+        return read(thisExpr.keyword(), thisExpr);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Super superExpr) {
+        return new SuperNode(buildExpr(superExpr.receiver), read(superExpr.keyword(), superExpr), superExpr.method());
+    }
+
+    private ExprNode read(Token name, VariableRef ref) {
+        switch (ref.kind) {
+            case VariableRef.LOCAL:
+                return new LocalReadNode(ref.slot);
+            case VariableRef.BOXED:
+                return new BoxedReadNode(ref.slot);
+            case VariableRef.UPVALUE:
+                return new UpvalueReadNode(ref.slot);
+            default:
+                return new GlobalReadNode(name, interpreter.globals);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.temma.lox;
+
+import java.util.List;
+
+/**
+ * Engine running the self-specializing node tree instead of visiting the AST.
+ * It shares the runtime model (environments, functions, classes, instances)
+ * with {@link Interpreter}; only the way code is executed differs.
+ */
+final class NodeInterpreter extends Interpreter {
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        StmtNode[] nodes = new NodeBuilder(this, 0).build(statements);
+        try {
+            StmtNodes.executeAll(nodes, globals);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    @Override
+    Object executeBody(Function declaration, Environment environment) {
+        StmtNode[] body = declaration.nodes;
+        if (body == null) {
+            body = new NodeBuilder(this, 1).build(declaration.body());
+            declaration.nodes = body;
+        }
+        return StmtNodes.executeAll(body, environment);
+    }
+}
@@ -0,0 +1,158 @@
+package com.temma.lox;
+
+/**
+ * Lox numbers are doubles, but a value that is an integer a double holds
+ * exactly (at most 2<sup>53</sup> in magnitude) and is not {@code -0} may be
+ * kept as a {@link Long} instead. Integer arithmetic stays on longs as long
+ * as its result is such an integer too, and otherwise falls back to the
+ * double operation on the same operands, which yields exactly what it would
+ * have had the operands been doubles all along. Either form is valid for
+ * such a value, and the VM and compiled code only produce doubles. So the
+ * representation never shows: {@link Interpreter#stringify} prints a long as
+ * the double it stands for, and {@link #equal} compares the two kinds as
+ * doubles.
+ */
+final class Numbers {
+
+    /** Largest magnitude of an integer kept as a long. */
+    static final long MAX_EXACT = 1L << 53;
+
+    /**
+     * What the long operations return when the result is not an exact
+     * integer; the caller then does the double operation. It is outside the
+     * range of exact integers, so no real result is mistaken for it.
+     */
+    static final long INEXACT = Long.MIN_VALUE;
+
+    private Numbers() {
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Double || value instanceof Long;
+    }
+
+    /** The value of a number; callers have checked {@link #isNumber}. */
+    static double toDouble(Object number) {
+        if (number instanceof Long l) {
+            return l;
+        }
+        return (Double) number;
+    }
+
+    /** The literal value of a number token. */
+    static Object parse(String lexeme) {
+        // Fifteen digits stay below 2^53.
+        if (lexeme.indexOf('.') < 0 && lexeme.length() <= 15) {
+            return Long.parseLong(lexeme);
+        }
+        return Double.parseDouble(lexeme);
+    }
+
+    private static boolean isExact(long value) {
+        // -MAX_EXACT..MAX_EXACT shifted to 0..2 * MAX_EXACT, in one comparison.
+        return Long.compareUnsigned(value + MAX_EXACT, 2 * MAX_EXACT) <= 0;
+    }
+
+    static long add(long a, long b) {
+        long result = a + b;
+        return isExact(result) ? result : INEXACT;
+    }
+
+    static long subtract(long a, long b) {
+        long result = a - b;
+        return isExact(result) ? result : INEXACT;
+    }
+
+    static long multiply(long a, long b) {
+        long result = a * b;
+        if (Math.multiplyHigh(a, b) != result >> 63 || !isExact(result)) {
+            return INEXACT;
+        }
+        // A zero times a negative number is -0 in double arithmetic.
+        if (result == 0 && (a < 0 || b < 0)) {
+            return INEXACT;
+        }
+        return result;
+    }
+
+    static long divide(long a, long b) {
+        // A quotient that is an integer comes out of the double division
+        // exactly, and multiplying back rules out one that merely rounded to
+        // an integer; both are much cheaper than a long division.
+        double quotient = (double) a / b;
+        long result = (long) quotient;
+        if (result != quotient || result * b != a || (a == 0 && b < 0)) {
+            return INEXACT;
+        }
+        return result;
+    }
+
+    static long negate(long a) {
+        return a == 0 ? INEXACT : -a;
+    }
+
+    /**
+     * Boxes the result of a double operation, as a long when it is an exact
+     * integer. It stands for the same value either way, so arithmetic done
+     * on doubles can still hand its integer results on as longs.
+     */
+    static Object valueOf(double value) {
+        long result = (long) value;
+        if (result == value && isExact(result) && (result != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return result;
+        }
+        return value;
+    }
+
+    /** Boxes the result of a long operation, doing the double one if it was inexact. */
+    static Object box(long result, double inexactResult) {
+        return result != INEXACT ? (Object) result : (Object) inexactResult;
+    }
+
+    static Object add(Object a, Object b) {
+        if (a instanceof Long x && b instanceof Long y) {
+            return box(add((long) x, (long) y), (double) x + y);
+        }
+        return toDouble(a) + toDouble(b);
+    }
+
+    static Object subtract(Object a, Object b) {
+        if (a instanceof Long x && b instanceof Long y) {
+            return box(subtract((long) x, (long) y), (double) x - y);
+        }
+        return toDouble(a) - toDouble(b);
+    }
+
+    static Object multiply(Object a, Object b) {
+        if (a instanceof Long x && b instanceof Long y) {
+            return box(multiply((long) x, (long) y), (double) x * y);
+        }
+        return toDouble(a) * toDouble(b);
+    }
+
+    static Object divide(Object a, Object b) {
+        if (a instanceof Long x && b instanceof Long y) {
+            return box(divide((long) x, (long) y), (double) x / y);
+        }
+        return toDouble(a) / toDouble(b);
+    }
+
+    static Object negate(Object a) {
+        if (a instanceof Long x) {
+            return box(negate((long) x), -(double) x);
+        }
+        return -(Double) a;
+    }
+
+    /**
+     * Compares numbers like {@link Double#equals} compares doubles, which is
+     * what {@link Interpreter#isEqual} has always done: NaN equals itself
+     * and {@code 0} does not equal {@code -0}.
+     */
+    static boolean equal(Object a, Object b) {
+        if (a instanceof Long x && b instanceof Long y) {
+            return x.longValue() == y.longValue();
+        }
+        return Double.doubleToLongBits(toDouble(a)) == Double.doubleToLongBits(toDouble(b));
+    }
+}
@@ -0,0 +1,304 @@
+package com.temma.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optional pass between the {@link Parser} and the {@link Resolver}, enabled
+ * with {@code --optimize}. It folds operators applied to literals, drops
+ * {@code if} branches and {@code while} loops whose condition is a constant,
+ * and removes local variables that are never mentioned and whose initializer
+ * cannot have an effect. Folding only happens when the operation would
+ * succeed: {@code "a" - 1} is left for the interpreter to report at run time.
+ */
+final class Optimizer implements ExprVisitor<Expr>, StmtVisitor<Stmt> {
+
+    /** Names read or assigned in the statement list being optimized. */
+    private Set<String> referenced = new HashSet<>();
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        return optimizeAll(statements, false);
+    }
+
+    /** Optimizes a function body parsed on its first call; see {@link Function#isDeferred}. */
+    List<Stmt> optimizeBody(List<Stmt> body) {
+        return optimizeAll(body, true);
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements, boolean isLocalScope) {
+        Set<String> enclosing = referenced;
+        referenced = new HashSet<>();
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = optimizeStmt(statement);
+            if (result != null) {
+                optimized.add(result);
+            }
+        }
+        if (isLocalScope) {
+            removeDeadDeclarations(optimized);
+        }
+        enclosing.addAll(referenced);
+        referenced = enclosing;
+        return optimized;
+    }
+
+    /**
+     * Drops declarations of locals nobody mentions. A name declared twice in
+     * the scope is kept so the Resolver still reports the redeclaration.
+     */
+    private void removeDeadDeclarations(List<Stmt> statements) {
+        Map<String, Integer> declarations = new HashMap<>();
+        for (Stmt statement : statements) {
+            Token name = declaredName(statement);
+            if (name != null) {
+                declarations.merge(name.lexeme, 1, Integer::sum);
+            }
+        }
+        statements.removeIf(statement -> statement instanceof VarDeclaration declaration
+                && !referenced.contains(declaration.name().lexeme)
+                && declarations.get(declaration.name().lexeme) == 1
+                && (declaration.initializer() == null || declaration.initializer() instanceof Literal));
+    }
+
+    private static Token declaredName(Stmt statement) {
+        if (statement instanceof VarDeclaration declaration) {
+            return declaration.name();
+        }
+        if (statement instanceof Function function) {
+            return function.name();
+        }
+        if (statement instanceof ClassStmt classStmt) {
+            return classStmt.name();
+        }
+        return null;
+    }
+
+    /** Returns the optimized statement, or null when it does nothing. */
+    private Stmt optimizeStmt(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /** Optimizes a statement in a position that needs one, such as a loop body. */
+    private Stmt optimizeNested(Stmt stmt) {
+        Stmt result = optimizeStmt(stmt);
+        return result != null ? result : new Block(new ArrayList<>());
+    }
+
+    private Expr optimizeExpr(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(ExpressionStmt stmt) {
+        Expr expression = optimizeExpr(stmt.expression());
+        return expression instanceof Literal ? null : new ExpressionStmt(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        return new Print(optimizeExpr(stmt.value()));
+    }
+
+    @Override
+    public Stmt visitVariableDeclaration(VarDeclaration varDeclaration) {
+        return new VarDeclaration(varDeclaration.name(), optimizeExpr(varDeclaration.initializer()));
+    }
+
+    @Override
+    public Stmt visitBlock(Block block) {
+        return new Block(optimizeAll(block.stmts(), true));
+    }
+
+    @Override
+    public Stmt visitIfStmt(IfStmt ifStmt) {
+        Expr condition = optimizeExpr(ifStmt.condition());
+        if (condition instanceof Literal literal) {
+            if (Interpreter.isTruthy(literal.value())) {
+                return optimizeStmt(ifStmt.thenBranch());
+            }
+            return ifStmt.elseBranch() == null ? null : optimizeStmt(ifStmt.elseBranch());
+        }
+        Stmt elseBranch = ifStmt.elseBranch() == null ? null : optimizeStmt(ifStmt.elseBranch());
+        return new IfStmt(condition, optimizeNested(ifStmt.thenBranch()), elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(WhileStmt whileStmt) {
+        Expr condition = optimizeExpr(whileStmt.condition());
+        if (condition instanceof Literal literal && !Interpreter.isTruthy(literal.value())) {
+            return null;
+        }
+        return new WhileStmt(condition, optimizeNested(whileStmt.body()));
+    }
+
+    @Override
+    public Stmt visitFunctionDecl(Function function) {
+        return optimizeFunction(function);
+    }
+
+    private Function optimizeFunction(Function function) {
+        if (function.isDeferred()) {
+            // Optimized once parsed; until then any name in it may be used.
+            referenced.addAll(function.deferredBody.names());
+            return function;
+        }
+        return new Function(function.name(), function.params(), optimizeAll(function.body(), true));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(ReturnStmt returnStmt) {
+        return new ReturnStmt(returnStmt.keyword(), optimizeExpr(returnStmt.value()));
+    }
+
+    @Override
+    public Stmt visitClassDecl(ClassStmt classStmt) {
+        if (classStmt.superclass() != null) {
+            referenced.add(classStmt.superclass().name().lexeme);
+        }
+        List<Function> methods = new ArrayList<>(classStmt.methods().size());
+        for (Function method : classStmt.methods()) {
+            methods.add(optimizeFunction(method));
+        }
+        return new ClassStmt(classStmt.name(), classStmt.superclass(), methods);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        Expr left = optimizeExpr(expr.left());
+        Expr right = optimizeExpr(expr.right());
+        if (left instanceof Literal a && right instanceof Literal b) {
+            Object value = fold(expr.operator().type, a.value(), b.value());
+            if (value != null) {
+                return new Literal(value);
+            }
+        }
+        return new Binary(left, expr.operator(), right);
+    }
+
+    /** Result of a binary operation on constants, or null when it would fail at run time. */
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String a && right instanceof String b) {
+                    return a + b;
+                }
+                break;
+            default:
+        }
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right)) {
+            return null;
+        }
+        switch (operator) {
+            case PLUS:
+                return Numbers.add(left, right);
+            case MINUS:
+                return Numbers.subtract(left, right);
+            case STAR:
+                return Numbers.multiply(left, right);
+            case SLASH:
+                return Numbers.divide(left, right);
+            default:
+        }
+        double a = Numbers.toDouble(left);
+        double b = Numbers.toDouble(right);
+        switch (operator) {
+            case GREATER:
+                return a > b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            case LESS_EQUAL:
+                return a <= b;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        Expr expression = optimizeExpr(expr.expression());
+        return expression instanceof Literal ? expression : new Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        Expr right = optimizeExpr(expr.right());
+        if (right instanceof Literal literal) {
+            if (expr.operator().type == TokenType.BANG) {
+                return new Literal(!Interpreter.isTruthy(literal.value()));
+            }
+            if (Numbers.isNumber(literal.value())) {
+                return new Literal(Numbers.negate(literal.value()));
+            }
+        }
+        return new Unary(expr.operator(), right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Variable variable) {
+        referenced.add(variable.name().lexeme);
+        return variable;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign assign) {
+        referenced.add(assign.name().lexeme);
+        return new Assign(assign.name(), optimizeExpr(assign.value()));
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical logical) {
+        Expr left = optimizeExpr(logical.left());
+        Expr right = optimizeExpr(logical.right());
+        if (left instanceof Literal literal) {
+            boolean shortCircuits = Interpreter.isTruthy(literal.value()) == (logical.operator().type == TokenType.OR);
+            return shortCircuits ? left : right;
+        }
+        return new Logical(left, logical.operator(), right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Call call) {
+        Expr callee = optimizeExpr(call.callee());
+        List<Expr> arguments = new ArrayList<>(call.arguments().size());
+        for (Expr argument : call.arguments()) {
+            arguments.add(optimizeExpr(argument));
+        }
+        return new Call(callee, call.paren(), arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(GetExpr getExpr) {
+        return new GetExpr(optimizeExpr(getExpr.object()), getExpr.name());
+    }
+
+    @Override
+    public Expr visitSetExpr(SetExpr setExpr) {
+        return new SetExpr(optimizeExpr(setExpr.object()), setExpr.name(), optimizeExpr(setExpr.value()));
+    }
+
+    @Override
+    public Expr visitThisExpr(ThisExpr thisExpr) {
+        return thisExpr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Super superExpr) {
+        return superExpr;
+    }
+}
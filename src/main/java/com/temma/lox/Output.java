@@ -0,0 +1,54 @@
+package com.temma.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Where {@code print} writes. The standard {@link System#out} flushes on
+ * every line, which costs a system call per {@code print} and dominates
+ * scripts that print a lot. {@link #buffer} replaces it with a stream that
+ * only writes when its buffer fills, when {@link #FLUSH_INTERVAL_MILLIS}
+ * have passed, before an error is reported and at exit. Every engine, the
+ * VM included, prints through {@code System.out}, so they all get it.
+ *
+ * <p>The interval keeps a long-running script's output from sitting in the
+ * buffer indefinitely; {@code --line-buffered} keeps the standard stream for
+ * when each line must show up as soon as it is printed.
+ */
+final class Output {
+
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    private Output() {
+    }
+
+    static void buffer() {
+        String encoding = System.getProperty("stdout.encoding");
+        Charset charset = encoding != null ? Charset.forName(encoding) : Charset.defaultCharset();
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_BYTES), false, charset);
+        System.setOut(out);
+        Runtime.getRuntime().addShutdownHook(new Thread(out::flush, "lox-output-flush"));
+        Thread flusher = new Thread(() -> {
+            try {
+                for (;;) {
+                    Thread.sleep(FLUSH_INTERVAL_MILLIS);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "lox-output-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Writes out what was printed so far, so it comes before what follows on another stream or a prompt. */
+    static void flush() {
+        System.out.flush();
+    }
+}
@@ -11,21 +11,53 @@ public class Parser {
 
     }
 
-    private final List<Token> tokens;
+    /**
+     * Tokens are scanned as the parser advances; the grammar only ever looks
+     * at the token just consumed and the one after it.
+     */
+    private final TokenBuffer.Source source;
+    private final TokenBuffer tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    /**
+     * Whether function and method bodies are only skipped over, their tokens
+     * kept in a {@link TokenRange} to be parsed by {@link #parseBody} on the
+     * first call (see {@code --lazy}).
+     */
+    private final boolean deferBodies;
+
+    Parser(TokenBuffer.Source source, boolean deferBodies) {
+        this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.deferBodies = deferBodies;
     }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.add(declaration());
+        while (hasNext()) {
+            statements.add(next());
         }
         return statements;
     }
 
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    /** Parses the next top-level declaration; null if it had a syntax error. */
+    Stmt next() {
+        return declaration();
+    }
+
+    /** Parses a body recorded by {@link #skipBody}: its statements and closing brace. */
+    List<Stmt> parseBody() {
+        try {
+            return block();
+        } catch (ParseError e) {
+            return new ArrayList<>();
+        }
+    }
+
     private Stmt declaration() {
         try {
             if (match(TokenType.CLASS)) {
@@ -80,10 +112,30 @@ public class Parser {
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        if (deferBodies) {
+            return new Function(name, parameters, skipBody());
+        }
         List<Stmt> body = block();
         return new Function(name, parameters, body);
     }
 
+    /** Records the tokens of a body up to and including the brace closing it. */
+    private TokenRange skipBody() {
+        TokenRange body = new TokenRange(source);
+        int depth = 0;
+        while (!isAtEnd()) {
+            TokenType type = tokens.type(current);
+            tokens.copy(current, body);
+            advance();
+            if (type == TokenType.LEFT_BRACE) {
+                depth++;
+            } else if (type == TokenType.RIGHT_BRACE && depth-- == 0) {
+                return body;
+            }
+        }
+        throw error(peek(), "Expect '}' after block.");
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
         Expr initializer = null;
@@ -370,11 +422,11 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) {
                 return;
             }
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS, FUN, VAR, FOR, IF, WHILE, PRINT, RETURN:
                     return;
                 default:
@@ -416,19 +468,19 @@ public class Parser {
         if (isAtEnd()) {
             return false;
         }
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.type(current) == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
 }
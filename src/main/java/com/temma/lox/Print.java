@@ -3,7 +3,7 @@ package com.temma.lox;
 public record Print(Expr value) implements Stmt {
 
     @Override
-    public void accept(StmtVisitor visitor) {
-        visitor.visitPrintStmt(this);
+    public <R> R accept(StmtVisitor<R> visitor) {
+        return visitor.visitPrintStmt(this);
     }
 }
@@ -0,0 +1,106 @@
+package com.temma.lox;
+
+/**
+ * Polymorphic inline cache for one property access site. Each entry remembers
+ * a receiver shape together with the resolved field offset (or, for reads
+ * falling through to the class, the method), so a hit costs a shape compare
+ * and an array access. Shapes are per class, hence a shape also pins the
+ * method table. Sites seeing more than {@link #MAX_ENTRIES} shapes go
+ * megamorphic and stop caching.
+ */
+final class PropertyCache {
+
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    private final int[] offsets = new int[MAX_ENTRIES];
+    private final Object[] targets = new Object[MAX_ENTRIES];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    Object get(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                int offset = offsets[i];
+                if (offset >= 0) {
+                    return instance.values[offset];
+                }
+                return ((LoxFunction) targets[i]).bind(instance);
+            }
+        }
+        int offset = shape.offsetOf(name.symbol);
+        if (offset >= 0) {
+            remember(shape, offset, null);
+            return instance.values[offset];
+        }
+        LoxFunction method = instance.klass.findMethod(name.symbol);
+        if (method != null) {
+            remember(shape, -1, method);
+            return method.bind(instance);
+        }
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    /**
+     * Resolves the property for an {@code obj.name(...)} call: the unbound
+     * method if the name reaches the class, or null when a field shadows it or
+     * nothing matches, in which case the caller falls back to {@link #get}.
+     */
+    LoxFunction method(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                return offsets[i] >= 0 ? null : (LoxFunction) targets[i];
+            }
+        }
+        int offset = shape.offsetOf(name.symbol);
+        if (offset >= 0) {
+            remember(shape, offset, null);
+            return null;
+        }
+        LoxFunction method = instance.klass.findMethod(name.symbol);
+        if (method != null) {
+            remember(shape, -1, method);
+        }
+        return method;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                int offset = offsets[i];
+                if (offset >= 0) {
+                    instance.values[offset] = value;
+                } else {
+                    instance.addField((Shape) targets[i], value);
+                }
+                return;
+            }
+        }
+        int offset = shape.offsetOf(name.symbol);
+        if (offset >= 0) {
+            remember(shape, offset, null);
+            instance.values[offset] = value;
+            return;
+        }
+        Shape next = shape.withField(name.symbol);
+        remember(shape, -1, next);
+        instance.addField(next, value);
+    }
+
+    private void remember(Shape shape, int offset, Object target) {
+        if (megamorphic) {
+            return;
+        }
+        if (size == MAX_ENTRIES) {
+            megamorphic = true;
+            return;
+        }
+        shapes[size] = shape;
+        offsets[size] = offset;
+        targets[size] = target;
+        size++;
+    }
+}
@@ -1,124 +1,256 @@
 package com.temma.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
-class Resolver implements ExprVisitor<Void>, StmtVisitor {
-
-	private final Interpreter interpreter;
-	private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+/**
+ * Tells every variable use how to reach its variable and reports scoping
+ * errors. Resolution runs twice: the first pass reports errors and finds the
+ * locals captured by an inner function or method; the second lays out the
+ * frames with that knowledge.
+ *
+ * <p>Each call gets one frame, holding its parameters and the locals of all
+ * its blocks; a block's slots are reused once it ends, so running a block
+ * allocates nothing. Only top-level code, which has no call frame, gives its
+ * outermost blocks frames of their own. A captured local lives in an
+ * {@link Upvalue} box stored in its slot, and a closure holds exactly the
+ * boxes of the variables it uses (directly or for a function nested in it),
+ * so it keeps nothing else of the enclosing frames alive.
+ *
+ * <p>The body of a function deferred by {@code --lazy} is only resolved on
+ * its first call. Until then every enclosing local its tokens name counts as
+ * used by it, which at worst boxes a local the body turns out to shadow.
+ */
+class Resolver implements ExprVisitor<Void>, StmtVisitor<Void> {
+
+	private final Stack<Scope> scopes = new Stack<>();
 	private FunctionType currentFunction = FunctionType.NONE;
 	private ClassType currentClass = ClassType.NONE;
+	private FunctionState currentState = new FunctionState(null);
+	private final Set<Object> captured = new HashSet<>();
+	private boolean layingOut = false;
 
-	Resolver(Interpreter interpreter) {
-		this.interpreter = interpreter;
+	void resolve(List<Stmt> statements) {
+		resolveAll(statements);
+		layingOut = true;
+		resolveAll(statements);
+	}
+
+	/**
+	 * Runs only the first pass, to report errors. Under {@code --optimize}
+	 * the code as written is checked this way before the {@link Optimizer}
+	 * drops any of it, and the optimized code is then resolved by a new
+	 * Resolver.
+	 */
+	void check(List<Stmt> statements) {
+		resolveAll(statements);
+	}
+
+	/**
+	 * Resolves the freshly parsed body of a deferred function as if it had
+	 * been resolved in place: its upvalues keep the indexes the closures
+	 * already created with it were given.
+	 */
+	void resolveDeferred(Function function, List<Stmt> body) {
+		resolveDeferred(function, body, 2);
+	}
+
+	/** Like {@link #check}, for the body of a deferred function. */
+	void checkDeferred(Function function, List<Stmt> body) {
+		resolveDeferred(function, body, 1);
+	}
+
+	private void resolveDeferred(Function function, List<Stmt> body, int passes) {
+		Enclosing enclosing = function.enclosing;
+		currentClass = enclosing.classType;
+		for (int pass = 0; pass < passes; pass++) {
+			layingOut = pass > 0;
+			FunctionState outside = new FunctionState(null);
+			currentState = outside;
+			beginScope(true);
+			FunctionState state = new FunctionState(outside);
+			for (int i = 0; i < enclosing.upvalues.length; i++) {
+				Local variable = new Local(enclosing.upvalues[i], function.captures[i], true);
+				scopes.peek().bind(enclosing.upvalues[i], variable);
+				state.upvalue(variable, outside);
+			}
+			resolveFunction(function, body, enclosing.type, state);
+			endScope();
+		}
 	}
 
 	@Override
-	public void visitBlock(Block block) {
-		beginScope();
-		resolve(block.stmts());
+	public Void visitBlock(Block block) {
+		beginScope(scopes.isEmpty());
+		resolveAll(block.stmts());
+		// A top-level block declaring nothing, not even in nested blocks, runs in the globals.
+		block.hasEnvironment = scopes.peek().hasFrame() && scopes.peek().slotCount() > 0;
+		block.slotCount = scopes.peek().slotCount();
 		endScope();
+		return null;
 	}
 
 	@Override
-	public void visitExpressionStmt(ExpressionStmt stmt) {
+	public Void visitExpressionStmt(ExpressionStmt stmt) {
 		resolve(stmt.expression());
+		return null;
 	}
 
 	@Override
-	public void visitPrintStmt(Print stmt) {
+	public Void visitPrintStmt(Print stmt) {
 		resolve(stmt.value());
+		return null;
 	}
 
 	@Override
-	public void visitVariableDeclaration(VarDeclaration varDeclaration) {
-		declare(varDeclaration.name());
+	public Void visitVariableDeclaration(VarDeclaration varDeclaration) {
+		Local variable = declare(varDeclaration.name());
+		varDeclaration.slot = variable.slot;
+		varDeclaration.isCaptured = variable.isCaptured;
 		if (varDeclaration.initializer() != null) {
 			resolve(varDeclaration.initializer());
 		}
 		define(varDeclaration.name());
+		return null;
 	}
 
-	private void declare(Token name) {
+	/** Declares the name in the innermost scope; a global gets {@link Local#GLOBAL}. */
+	private Local declare(Token name) {
 		if (scopes.isEmpty()) {
-			return;
+			return Local.GLOBAL;
 		}
-		Map<String, Boolean> scope = scopes.peek();
-		if (scope.containsKey(name.lexeme)) {
-			Lox.error(name, "Already a variable with this name in this scope.");
+		if (scopes.peek().isDeclared(name.lexeme)) {
+			error(name, "Already a variable with this name in this scope.");
 		}
-		scope.put(name.lexeme, false);
+		return declare(name.lexeme, name);
+	}
+
+	/** @param key what identifies the declaration in both passes */
+	private Local declare(String name, Object key) {
+		return scopes.peek().declare(name, key, captured.contains(key));
 	}
 
 	private void define(Token name) {
 		if (scopes.isEmpty()) {
 			return;
 		}
-		scopes.peek().put(name.lexeme, true);
+		scopes.peek().define(name.lexeme);
 	}
 
 	@Override
-	public void visitIfStmt(IfStmt ifStmt) {
+	public Void visitIfStmt(IfStmt ifStmt) {
 		resolve(ifStmt.condition());
 		resolve(ifStmt.thenBranch());
 		if (ifStmt.elseBranch() != null) {
 			resolve(ifStmt.elseBranch());
 		}
+		return null;
 	}
 
 	@Override
-	public void visitWhileStmt(WhileStmt whileStmt) {
+	public Void visitWhileStmt(WhileStmt whileStmt) {
 		resolve(whileStmt.condition());
 		resolve(whileStmt.body());
+		return null;
 	}
 
 	@Override
-	public void visitFunctionDecl(Function function) {
-		declare(function.name());
+	public Void visitFunctionDecl(Function function) {
+		Local variable = declare(function.name());
+		function.slot = variable.slot;
+		function.isCaptured = variable.isCaptured;
 		define(function.name());
 		resolveFunction(function, FunctionType.FUNCTION);
+		return null;
 	}
 
 	private void resolveFunction(Function function, FunctionType type) {
+		if (function.isDeferred()) {
+			captureDeferred(function, type);
+		} else {
+			resolveFunction(function, function.body(), type, new FunctionState(currentState));
+		}
+	}
+
+	private void resolveFunction(Function function, List<Stmt> body, FunctionType type, FunctionState state) {
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
-		beginScope();
+		currentState = state;
+		beginScope(true);
+		List<Local> parameters = new ArrayList<>();
+		if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+			parameters.add(declare("this", function));
+			scopes.peek().define("this");
+		}
 		for (Token param : function.params()) {
-			declare(param);
+			parameters.add(declare(param));
 			define(param);
 		}
-		resolve(function.body());
+		resolveAll(body);
+		function.slotCount = scopes.peek().slotCount();
+		function.captures = currentState.captures();
+		function.boxedSlots = parameters.stream()
+				.filter(parameter -> parameter.isCaptured)
+				.mapToInt(parameter -> parameter.slot)
+				.toArray();
 		endScope();
+		currentState = currentState.enclosing;
 		currentFunction = enclosingFunction;
 	}
 
+	/** Makes an upvalue of every enclosing local the unparsed body names. */
+	private void captureDeferred(Function function, FunctionType type) {
+		FunctionState state = new FunctionState(currentState);
+		List<String> upvalues = new ArrayList<>();
+		for (String name : function.deferredBody.names()) {
+			for (int i = scopes.size() - 1; i >= 0; i--) {
+				Local variable = scopes.get(i).lookUp(name);
+				if (variable != null) {
+					captured.add(variable.key);
+					state.upvalue(variable, scopes.get(i).function);
+					upvalues.add(name);
+					break;
+				}
+			}
+		}
+		function.captures = state.captures();
+		function.enclosing = new Enclosing(type, currentClass, upvalues.toArray(new String[0]));
+	}
+
 	@Override
-	public void visitReturnStmt(ReturnStmt returnStmt) {
+	public Void visitReturnStmt(ReturnStmt returnStmt) {
 		if (currentFunction == FunctionType.NONE) {
-			Lox.error(returnStmt.keyword(), "Can't return from top-level code.");
+			error(returnStmt.keyword(), "Can't return from top-level code.");
 		}
 		
 		if (returnStmt.value() != null) {
 			if (currentFunction == FunctionType.INITIALIZER) {
-				Lox.error(returnStmt.keyword(), "Can't return a value from an initializer");
+				error(returnStmt.keyword(), "Can't return a value from an initializer");
 			}
 			resolve(returnStmt.value());
+			returnStmt.isTailCall = returnStmt.value() instanceof Call
+					&& currentFunction != FunctionType.INITIALIZER;
 		}
+		return null;
 	}
 
 	@Override
-	public void visitClassDecl(ClassStmt classStmt) {
+	public Void visitClassDecl(ClassStmt classStmt) {
 		ClassType enclosingClass = currentClass;
 		currentClass = ClassType.CLASS;
 		
-		declare(classStmt.name());
+		Local variable = declare(classStmt.name());
+		classStmt.slot = variable.slot;
+		classStmt.isCaptured = variable.isCaptured;
 		define(classStmt.name());
 		
 		if (classStmt.superclass() != null && classStmt.name().lexeme.equals(classStmt.superclass().name().lexeme)) {
-			Lox.error(classStmt.superclass().name(), "A class can't inherit from itself.");
+			error(classStmt.superclass().name(), "A class can't inherit from itself.");
 		}
 		
 		if (classStmt.superclass() != null) {
@@ -127,13 +259,11 @@ class Resolver implements ExprVisitor<Void>, StmtVisitor {
 		}
 
 		if (classStmt.superclass() != null) {
-			beginScope();
-			scopes.peek().put("super", true);
+			beginScope(scopes.isEmpty());
+			classStmt.superSlot = declare("super", classStmt).slot;
+			scopes.peek().define("super");
 		}
 		
-		beginScope();
-		scopes.peek().put("this", true);
-		
 		for (Function method : classStmt.methods()) {
 			FunctionType type = FunctionType.METHOD;
 			if (method.name().lexeme.equals("init")) {
@@ -141,14 +271,13 @@ class Resolver implements ExprVisitor<Void>, StmtVisitor {
 			}
 			resolveFunction(method, type);
 		}
-		
-		endScope();
 
 		if (classStmt.superclass() != null) {
 			endScope();
 		}
 		
 		currentClass = enclosingClass;
+		return null;
 	}
 
 	@Override
@@ -177,17 +306,17 @@ class Resolver implements ExprVisitor<Void>, StmtVisitor {
 
 	@Override
 	public Void visitVariableExpr(Variable variable) {
-		if (!scopes.isEmpty() && scopes.peek().get(variable.name().lexeme) == Boolean.FALSE) {
-			Lox.error(variable.name(), "Can't read local variable in its own initializer.");
+		if (!scopes.isEmpty() && scopes.peek().isDeclaredButNotDefined(variable.name().lexeme)) {
+			error(variable.name(), "Can't read local variable in its own initializer.");
 		}
-		resolveLocal(variable, variable.name());
+		resolveLocal(variable, variable.name().lexeme);
 		return null;
 	}
 
 	@Override
 	public Void visitAssignExpr(Assign assign) {
 		resolve(assign.value());
-		resolveLocal(assign, assign.name());
+		resolveLocal(assign, assign.name().lexeme);
 		return null;
 	}
 
@@ -223,33 +352,48 @@ class Resolver implements ExprVisitor<Void>, StmtVisitor {
 	@Override
 	public Void visitThisExpr(ThisExpr thisExpr) {
 		if (currentClass == ClassType.NONE) {
-			Lox.error(thisExpr.keyword(), "Can't use 'this' outside of a class.");
+			error(thisExpr.keyword(), "Can't use 'this' outside of a class.");
 		}
-		resolveLocal(thisExpr, thisExpr.keyword());
+		resolveLocal(thisExpr, "this");
 		return null;
 	}
 	
-	private void resolveLocal(Expr expr, Token name) {
+	private void resolveLocal(VariableRef expr, String name) {
 		for (int i = scopes.size() - 1; i >= 0; i--) {
-			if (scopes.get(i).containsKey(name.lexeme)) {
-				interpreter.resolve(expr, scopes.size() - 1 - i);
-				return;
+			Scope scope = scopes.get(i);
+			Local variable = scope.lookUp(name);
+			if (variable == null) {
+				continue;
+			}
+			if (scope.function == currentState) {
+				expr.resolve(variable.isCaptured ? VariableRef.BOXED : VariableRef.LOCAL, variable.slot);
+			} else {
+				captured.add(variable.key);
+				expr.resolve(VariableRef.UPVALUE, currentState.upvalue(variable, scope.function));
 			}
+			return;
 		}
 	}
 
 	private void endScope() {
-		scopes.pop();
+		scopes.pop().close();
 	}
 
-	private void beginScope() {
-		scopes.push(new HashMap<>());
+	private void beginScope(boolean hasFrame) {
+		scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), hasFrame, currentState));
 	}
 
-	void resolve(List<Stmt> statements) {
+	private void resolveAll(List<Stmt> statements) {
 		statements.forEach(this::resolve);
 	}
 
+	/** Errors are reported by the first pass only. */
+	private void error(Token token, String message) {
+		if (!layingOut) {
+			Lox.error(token, message);
+		}
+	}
+
 	private void resolve(Stmt stmt) {
 		stmt.accept(this);
 	}
@@ -258,6 +402,138 @@ class Resolver implements ExprVisitor<Void>, StmtVisitor {
 		expr.accept(this);
 	}
 
+	/**
+	 * Names declared in one lexical scope. Each name gets the next free slot of
+	 * the runtime frame holding the scope: its own frame, or the one of the
+	 * nearest enclosing scope that has a frame.
+	 */
+	private static final class Scope {
+
+		private final Map<String, Local> variables = new HashMap<>();
+		private final Map<String, Boolean> defined = new HashMap<>();
+		private final Scope frame;
+		private final int firstSlot;
+		private int nextSlot = 0;
+		private int slotCount = 0;
+		final FunctionState function;
+
+		Scope(Scope enclosing, boolean hasFrame, FunctionState function) {
+			this.frame = hasFrame ? this : enclosing.frame;
+			this.firstSlot = frame.nextSlot;
+			this.function = function;
+		}
+
+		Local declare(String name, Object key, boolean isCaptured) {
+			Local variable = new Local(key, frame.nextSlot++, isCaptured);
+			frame.slotCount = Math.max(frame.slotCount, frame.nextSlot);
+			variables.put(name, variable);
+			defined.put(name, false);
+			return variable;
+		}
+
+		void define(String name) {
+			defined.put(name, true);
+		}
+
+		/** Hands the slots of a scope sharing its frame back to the enclosing scope. */
+		void close() {
+			frame.nextSlot = firstSlot;
+		}
+
+		boolean hasFrame() {
+			return frame == this;
+		}
+
+		boolean isDeclared(String name) {
+			return variables.containsKey(name);
+		}
+
+		boolean isDeclaredButNotDefined(String name) {
+			return defined.get(name) == Boolean.FALSE;
+		}
+
+		/** Makes an existing variable visible under {@code name}. */
+		void bind(String name, Local variable) {
+			variables.put(name, variable);
+			defined.put(name, true);
+		}
+
+		Local lookUp(String name) {
+			return variables.get(name);
+		}
+
+		int slotCount() {
+			return slotCount;
+		}
+	}
+
+	/** A declared local: its slot, and whether some closure captures it. */
+	private static final class Local {
+
+		static final Local GLOBAL = new Local(null, 0, false);
+
+		final Object key;
+		final int slot;
+		final boolean isCaptured;
+
+		Local(Object key, int slot, boolean isCaptured) {
+			this.key = key;
+			this.slot = slot;
+			this.isCaptured = isCaptured;
+		}
+	}
+
+	/**
+	 * The function being resolved, or top-level code. Collects the variables of
+	 * enclosing functions its body uses, each given an index into the closure's
+	 * upvalues.
+	 */
+	private static final class FunctionState {
+
+		final FunctionState enclosing;
+		private final Map<Local, Integer> upvalues = new HashMap<>();
+		private final List<Integer> captures = new ArrayList<>();
+
+		FunctionState(FunctionState enclosing) {
+			this.enclosing = enclosing;
+		}
+
+		/**
+		 * Index of the upvalue holding a variable of {@code owner}, an enclosing
+		 * function. When the variable is not a local of the function right
+		 * outside, that one captures it too, so the box can be handed down.
+		 */
+		int upvalue(Local variable, FunctionState owner) {
+			Integer index = upvalues.get(variable);
+			if (index == null) {
+				captures.add(enclosing == owner ? variable.slot : ~enclosing.upvalue(variable, owner));
+				index = captures.size() - 1;
+				upvalues.put(variable, index);
+			}
+			return index;
+		}
+
+		/** Where a closure finds each upvalue when created; see {@link Function#captures}. */
+		int[] captures() {
+			return captures.stream().mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	/** The context of a deferred function body, kept for {@link #resolveDeferred}. */
+	static final class Enclosing {
+
+		private final FunctionType type;
+		private final ClassType classType;
+		/** Names of the function's upvalues, by index. */
+		private final String[] upvalues;
+
+		private Enclosing(FunctionType type, ClassType classType, String[] upvalues) {
+			this.type = type;
+			this.classType = classType;
+			this.upvalues = upvalues;
+		}
+	}
+
 	private enum FunctionType {
 		NONE, METHOD, FUNCTION, INITIALIZER
 	}
@@ -271,12 +547,13 @@ class Resolver implements ExprVisitor<Void>, StmtVisitor {
 	@Override
 	public Void visitSuperExpr(Super superExpr) {
 		if (currentClass == ClassType.NONE) {
-			Lox.error(superExpr.keyword(), "Can't use 'super' outside a class.");
+			error(superExpr.keyword(), "Can't use 'super' outside a class.");
 		}
 		if (currentClass != ClassType.SUBCLASS) {
-			Lox.error(superExpr.keyword(), "Can't use 'super' in a class with not superclass.");
+			error(superExpr.keyword(), "Can't use 'super' in a class with not superclass.");
 		}
-		resolveLocal(superExpr, superExpr.keyword());
+		resolveLocal(superExpr, "super");
+		resolveLocal(superExpr.receiver, "this");
 		return null;
 	}
 	
@@ -1,9 +1,31 @@
 package com.temma.lox;
 
-record ReturnStmt(Token keyword, Expr value) implements Stmt {
+final class ReturnStmt implements Stmt {
+
+	private final Token keyword;
+	private final Expr value;
+
+	/**
+	 * Set by the {@link Resolver} when the value is a call whose result is
+	 * returned as is, so the caller's frame can be dropped before the call.
+	 */
+	boolean isTailCall = false;
+
+	ReturnStmt(Token keyword, Expr value) {
+		this.keyword = keyword;
+		this.value = value;
+	}
+
+	Token keyword() {
+		return keyword;
+	}
+
+	Expr value() {
+		return value;
+	}
 
 	@Override
-	public void accept(StmtVisitor visitor) {
-		visitor.visitReturnStmt(this);
+	public <R> R accept(StmtVisitor<R> visitor) {
+		return visitor.visitReturnStmt(this);
 	}
 }
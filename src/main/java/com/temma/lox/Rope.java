@@ -0,0 +1,119 @@
+package com.temma.lox;
+
+import java.util.ArrayDeque;
+
+/**
+ * A Lox string made by {@code +}. Joining two strings only links them, so a
+ * script that appends to a string in a loop does linear work instead of
+ * copying everything it has built so far on every step. The characters are
+ * copied once, the first time the string is printed, compared or hashed, and
+ * the flat string is kept from then on.
+ *
+ * <p>A Lox string is either a {@link String} or a rope; {@link #isString}
+ * checks for both and {@link Interpreter#isEqual} compares them by content,
+ * so scripts cannot tell the two apart.
+ */
+final class Rope {
+
+    /** Results shorter than this are copied right away; a node would not pay for itself. */
+    private static final int MIN_LENGTH = 64;
+
+    private final int length;
+    /** Each a String or a Rope; null once the rope is flat. */
+    private Object left;
+    private Object right;
+    private String flat;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    /**
+     * Joins two Lox strings; callers have checked {@link #isString}. A result
+     * longer than a Java string can be is reported at {@code operator}.
+     */
+    static Object concat(Object left, Object right, Token operator) {
+        int leftLength = length(left);
+        int rightLength = length(right);
+        if (leftLength == 0) {
+            return right;
+        }
+        if (rightLength == 0) {
+            return left;
+        }
+        int length;
+        try {
+            length = Math.addExact(leftLength, rightLength);
+        } catch (ArithmeticException e) {
+            throw new RuntimeError(operator, "String too long.");
+        }
+        if (length < MIN_LENGTH) {
+            return left.toString().concat(right.toString());
+        }
+        return new Rope(left, right, length);
+    }
+
+    /** Whether two Lox strings hold the same characters; a length mismatch needs no flattening. */
+    static boolean equal(Object a, Object b) {
+        return length(a) == length(b) && a.toString().equals(b.toString());
+    }
+
+    private static int length(Object string) {
+        return string instanceof Rope rope ? rope.length : ((String) string).length();
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = flatten();
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    /**
+     * Copies the leaves into place from the last one back, without
+     * recursion: a rope built by appending in a loop is as deep as the loop
+     * ran, and walking it right to left keeps the stack small.
+     */
+    private String flatten() {
+        char[] chars = new char[length];
+        int end = length;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            String leaf;
+            if (next instanceof Rope rope) {
+                if (rope.flat == null) {
+                    pending.push(rope.left);
+                    pending.push(rope.right);
+                    continue;
+                }
+                leaf = rope.flat;
+            } else {
+                leaf = (String) next;
+            }
+            end -= leaf.length();
+            leaf.getChars(0, leaf.length(), chars, end);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope rope && equal(this, rope);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
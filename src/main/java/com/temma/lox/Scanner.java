@@ -1,138 +1,170 @@
 package com.temma.lox;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-class Scanner {
-
-    private static final Map<String, TokenType> KEYWORDS = Map.ofEntries(
-          Map.entry("and", TokenType.AND),
-          Map.entry("class", TokenType.CLASS),
-          Map.entry("else", TokenType.ELSE),
-          Map.entry("false", TokenType.FALSE),
-          Map.entry("for", TokenType.FOR),
-          Map.entry("fun", TokenType.FUN),
-          Map.entry("if", TokenType.IF),
-          Map.entry("nil", TokenType.NIL),
-          Map.entry("or", TokenType.OR),
-          Map.entry("print", TokenType.PRINT),
-          Map.entry("return", TokenType.RETURN),
-          Map.entry("super", TokenType.SUPER),
-          Map.entry("this", TokenType.THIS),
-          Map.entry("true", TokenType.TRUE),
-          Map.entry("var", TokenType.VAR),
-          Map.entry("while", TokenType.WHILE));
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Turns source text into tokens on demand, appending them to a
+ * {@link TokenBuffer}. The source is read in chunks into a buffer that only
+ * has to hold the token being scanned, so a script of any size is scanned in
+ * memory bounded by its longest token.
+ */
+class Scanner implements TokenBuffer.Source {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    /** How runs are skipped; set once, before anything is scanned. */
+    private static CharRuns runs = CharRuns.SCALAR;
+
+    private final Reader source;
+    private final LexemeTable lexemes = new LexemeTable();
+    private TokenBuffer out;
+    private char[] buffer = new char[CHUNK_SIZE];
+    private int length = 0;
+    private boolean exhausted = false;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     Scanner(String source) {
+        this(new StringReader(source));
+    }
+
+    Scanner(Reader source) {
         this.source = source;
     }
 
-    List<Token> scanTokens() {
+    static void useRuns(CharRuns charRuns) {
+        runs = charRuns;
+    }
+
+    @Override
+    public void scanToken(TokenBuffer tokens) {
+        out = tokens;
         while (!isAtEnd()) {
             start = current;
-            scanToken();
+            if (scan()) {
+                return;
+            }
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        tokens.add(TokenType.EOF, -1, "", line);
     }
 
-    private void scanToken() {
+    @Override
+    public Symbol symbol(int id) {
+        return lexemes.symbol(id);
+    }
+
+    /** Scans from {@code start}; false for whitespace, comments and errors, which add no token. */
+    private boolean scan() {
         char c = advance();
         switch (c) {
             case '(':
-                addToken(TokenType.LEFT_PAREN);
-                break;
+                return token(TokenType.LEFT_PAREN);
             case ')':
-                addToken(TokenType.RIGHT_PAREN);
-                break;
+                return token(TokenType.RIGHT_PAREN);
             case '{':
-                addToken(TokenType.LEFT_BRACE);
-                break;
+                return token(TokenType.LEFT_BRACE);
             case '}':
-                addToken(TokenType.RIGHT_BRACE);
-                break;
+                return token(TokenType.RIGHT_BRACE);
             case ',':
-                addToken(TokenType.COMMA);
-                break;
+                return token(TokenType.COMMA);
             case '.':
-                addToken(TokenType.DOT);
-                break;
+                return token(TokenType.DOT);
             case '-':
-                addToken(TokenType.MINUS);
-                break;
+                return token(TokenType.MINUS);
             case '+':
-                addToken(TokenType.PLUS);
-                break;
+                return token(TokenType.PLUS);
             case ';':
-                addToken(TokenType.SEMICOLON);
-                break;
+                return token(TokenType.SEMICOLON);
             case '*':
-                addToken(TokenType.STAR);
-                break;
+                return token(TokenType.STAR);
             case '!':
-                addToken(matchNext('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-                break;
+                return token(matchNext('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
             case '=':
-                addToken(matchNext('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-                break;
+                return token(matchNext('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
             case '<':
-                addToken(matchNext('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-                break;
+                return token(matchNext('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
             case '>':
-                addToken(matchNext('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
-                break;
+                return token(matchNext('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
             case '/':
                 if (matchNext('/')) {
-                    while (peek() != '\n' && !isAtEnd()) {
-                        advance();
-                    }
-                } else {
-                    addToken(TokenType.SLASH);
+                    comment();
+                    return false;
                 }
-                break;
+                return token(TokenType.SLASH);
+            case '\n':
+                line++;
+                whitespace();
+                return false;
             case ' ':
             case '\t':
             case '\r':
-                break;
-            case '\n':
-                line++;
-                break;
+                whitespace();
+                return false;
             case '"':
-                string();
-                break;
+                return string();
             default:
                 if (isDigit(c)) {
-                    number();
+                    return number();
                 } else if (isAlpha(c)) {
-                    identifier();
-                } else {
-                    Lox.error(line, "Unexpected character.");
+                    return identifier();
                 }
+                Lox.error(line, "Unexpected character.");
+                return false;
         }
     }
 
-    private void identifier() {
-        while (isAlphanumeric(peek())) {
-            advance();
-        }
+    /*
+     * The runs that make up most of a script (whitespace, comments, string
+     * bodies and identifiers) are scanned by the loops below straight over the
+     * buffered chunk with CharRuns, refilling only when a run reaches its end,
+     * rather than through peek() and advance() a character at a time.
+     */
 
-        String text = source.substring(start, current);
-        TokenType type = KEYWORDS.get(text);
-        if (type == null) {
-            type = TokenType.IDENTIFIER;
-        }
-        addToken(type);
+    /** Skips the rest of a run of whitespace, counting its newlines. */
+    private void whitespace() {
+        do {
+            int end = length;
+            int i = runs.skipWhitespace(buffer, current, end);
+            line += runs.countNewlines(buffer, current, i);
+            current = i;
+            if (i < end) {
+                return;
+            }
+            start = current;
+        } while (isAvailable(1));
     }
 
-    private boolean isAlphanumeric(char c) {
-        return isAlpha(c) || isDigit(c);
+    /** Skips a line comment up to, not including, its newline. */
+    private void comment() {
+        do {
+            int end = length;
+            int i = runs.indexOf(buffer, current, end, '\n');
+            current = i;
+            if (i < end) {
+                return;
+            }
+            start = current;
+        } while (isAvailable(1));
+    }
+
+    private boolean identifier() {
+        do {
+            int end = length;
+            int i = runs.skipIdentifier(buffer, current, end);
+            current = i;
+            if (i < end) {
+                break;
+            }
+        } while (isAvailable(1));
+
+        int lexeme = lexemes.intern(buffer, start, current - start);
+        out.add(lexemes.type(lexeme), lexeme, null, line);
+        return true;
     }
 
     private boolean isAlpha(char c) {
@@ -141,7 +173,7 @@ class Scanner {
               c == '_';
     }
 
-    private void number() {
+    private boolean number() {
         while (isDigit(peek())) {
             advance();
         }
@@ -154,70 +186,112 @@ class Scanner {
             }
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        out.add(TokenType.NUMBER, -1, text(start, current), line);
+        return true;
     }
 
     private boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
-    private void string() {
-        while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') {
-                line++;
-            }
-            advance();
-        }
+    private boolean string() {
+        boolean closed = false;
+        do {
+            int end = length;
+            int i = runs.indexOf(buffer, current, end, '"');
+            line += runs.countNewlines(buffer, current, i);
+            current = i;
+            closed = i < end;
+        } while (!closed && isAvailable(1));
 
-        if (isAtEnd()) {
+        if (!closed) {
             Lox.error(line, "Unterminated string.");
-            return;
+            return false;
         }
 
         advance();
 
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        out.add(TokenType.STRING, -1, text(start, current), line);
+        return true;
     }
 
     private char peek() {
-        if (isAtEnd()) {
+        if (!isAvailable(1)) {
             return '\0';
         }
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) {
+        if (!isAvailable(2)) {
             return '\0';
         }
-        return source.charAt(current + 1);
+        return buffer[current + 1];
     }
 
     private boolean matchNext(char expected) {
         if (isAtEnd()) {
             return false;
         }
-        if (source.charAt(current) != expected) {
+        if (buffer[current] != expected) {
             return false;
         }
         current++;
         return true;
     }
 
+    /** Consumes a character; callers have made sure one is available. */
     private char advance() {
-        return source.charAt(current++);
+        return buffer[current++];
     }
 
-    private void addToken(TokenType tokenType) {
-        addToken(tokenType, null);
+    private boolean token(TokenType tokenType) {
+        out.add(tokenType, lexemes.intern(buffer, start, current - start), null, line);
+        return true;
     }
 
-    private void addToken(TokenType tokenType, Object literal) {
-        tokens.add(new Token(tokenType, source.substring(start, current), literal, line));
+    private String text(int from, int to) {
+        return new String(buffer, from, to - from);
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !isAvailable(1);
+    }
+
+    /** Whether {@code count} characters from {@code current} on are buffered, reading more if needed. */
+    private boolean isAvailable(int count) {
+        while (current + count > length) {
+            if (exhausted) {
+                return false;
+            }
+            fill();
+        }
+        return true;
+    }
+
+    /**
+     * Drops the characters before the current token and reads the next chunk
+     * behind the rest, growing the buffer only for a token longer than it.
+     */
+    private void fill() {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length - start);
+            length -= start;
+            current -= start;
+            start = 0;
+        }
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        try {
+            int read = source.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                exhausted = true;
+            } else {
+                length += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
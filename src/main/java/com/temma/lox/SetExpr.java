@@ -1,6 +1,30 @@
 package com.temma.lox;
 
-record SetExpr(Expr object, Token name, Expr value) implements Expr {
+final class SetExpr implements Expr {
+
+    private final Expr object;
+    private final Token name;
+    private final Expr value;
+
+    final PropertyCache cache = new PropertyCache();
+
+    SetExpr(Expr object, Token name, Expr value) {
+        this.object = object;
+        this.name = name;
+        this.value = value;
+    }
+
+    Expr object() {
+        return object;
+    }
+
+    Token name() {
+        return name;
+    }
+
+    Expr value() {
+        return value;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
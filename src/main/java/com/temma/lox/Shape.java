@@ -0,0 +1,49 @@
+package com.temma.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hidden class describing the field layout of a {@link LoxInstance}: which
+ * field lives at which offset of the instance's value array. Instances that
+ * got the same fields in the same order share one shape, so the layout is
+ * stored once per shape instead of once per instance. Shapes are immutable;
+ * adding a field moves an instance along a cached transition to a child shape.
+ */
+final class Shape {
+
+    private final Map<Symbol, Integer> offsets;
+    private Map<Symbol, Shape> transitions = null;
+
+    private Shape(Map<Symbol, Integer> offsets) {
+        this.offsets = offsets;
+    }
+
+    static Shape root() {
+        return new Shape(Map.of());
+    }
+
+    /** Offset of the field in the instance's values, or -1 if absent. */
+    int offsetOf(Symbol name) {
+        Integer offset = offsets.get(name);
+        return offset == null ? -1 : offset;
+    }
+
+    int fieldCount() {
+        return offsets.size();
+    }
+
+    Shape withField(Symbol name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<Symbol, Integer> extended = new HashMap<>(offsets);
+            extended.put(name, offsets.size());
+            next = new Shape(extended);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -2,6 +2,6 @@ package com.temma.lox;
 
 public interface Stmt {
 
-    void accept(StmtVisitor visitor);
+    <R> R accept(StmtVisitor<R> visitor);
 
 }
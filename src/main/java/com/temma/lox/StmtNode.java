@@ -0,0 +1,7 @@
+package com.temma.lox;
+
+abstract class StmtNode extends Node {
+
+    /** Returns {@link Interpreter#NORMAL}, or the value of a {@code return} executed inside. */
+    abstract Object execute(Environment environment);
+}
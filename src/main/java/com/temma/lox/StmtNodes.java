@@ -0,0 +1,284 @@
+package com.temma.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statement nodes of the executable tree. Declarations know at build time
+ * whether they define a global (by name) or a slot of the local frame.
+ */
+final class StmtNodes {
+
+    private StmtNodes() {
+    }
+
+    static final class ExpressionNode extends StmtNode {
+
+        private ExprNode expression;
+
+        ExpressionNode(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            expression.execute(environment);
+            return Interpreter.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            expression = swap(expression, oldChild, newChild);
+        }
+    }
+
+    static final class PrintNode extends StmtNode {
+
+        private ExprNode value;
+
+        PrintNode(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            System.out.println(Interpreter.stringify(value.execute(environment)));
+            return Interpreter.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    static final class VarNode extends StmtNode {
+
+        private final Symbol name;
+        private final int slot;
+        private final boolean isCaptured;
+        private ExprNode initializer;
+
+        /** @param name the global's name, or null for the local in {@code slot} */
+        VarNode(Symbol name, int slot, boolean isCaptured, ExprNode initializer) {
+            this.name = name;
+            this.slot = slot;
+            this.isCaptured = isCaptured;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = initializer == null ? null : initializer.execute(environment);
+            declare(environment, name, slot, isCaptured);
+            define(environment, name, slot, isCaptured, value);
+            return Interpreter.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            initializer = swap(initializer, oldChild, newChild);
+        }
+    }
+
+    static final class BlockNode extends StmtNode {
+
+        private final int slotCount;
+        private final StmtNode[] body;
+
+        BlockNode(int slotCount, StmtNode[] body) {
+            this.slotCount = slotCount;
+            this.body = adoptAll(body);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeAll(body, new Environment(slotCount, Upvalue.NONE));
+        }
+    }
+
+    /** A block whose locals live in the enclosing frame; see {@link Block#hasEnvironment}. */
+    static final class InlineBlockNode extends StmtNode {
+
+        private final StmtNode[] body;
+
+        InlineBlockNode(StmtNode[] body) {
+            this.body = adoptAll(body);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeAll(body, environment);
+        }
+    }
+
+    static final class IfNode extends StmtNode {
+
+        private ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        IfNode(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (Interpreter.isTruthy(condition.execute(environment))) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return Interpreter.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            condition = swap(condition, oldChild, newChild);
+        }
+    }
+
+    static final class WhileNode extends StmtNode {
+
+        private ExprNode condition;
+        private final StmtNode body;
+
+        WhileNode(ExprNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            while (Interpreter.isTruthy(condition.execute(environment))) {
+                Object completion = body.execute(environment);
+                if (completion != Interpreter.NORMAL) {
+                    return completion;
+                }
+            }
+            return Interpreter.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            condition = swap(condition, oldChild, newChild);
+        }
+    }
+
+    static final class FunctionNode extends StmtNode {
+
+        private final Symbol name;
+        private final Function declaration;
+
+        /** @param name the global's name, or null for a local */
+        FunctionNode(Symbol name, Function declaration) {
+            this.name = name;
+            this.declaration = declaration;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            declare(environment, name, declaration.slot, declaration.isCaptured);
+            LoxFunction function = new LoxFunction(declaration, Upvalue.capture(declaration, environment), false);
+            define(environment, name, declaration.slot, declaration.isCaptured, function);
+            return Interpreter.NORMAL;
+        }
+    }
+
+    static final class ReturnNode extends StmtNode {
+
+        private ExprNode value;
+
+        ReturnNode(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value == null ? null : value.execute(environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = swap(value, oldChild, newChild);
+        }
+    }
+
+    static final class ClassNode extends StmtNode {
+
+        private final Symbol name;
+        private final ClassStmt declaration;
+        private ExprNode superclass;
+
+        /** @param name the global's name, or null for a local */
+        ClassNode(Symbol name, ClassStmt declaration, ExprNode superclass) {
+            this.name = name;
+            this.declaration = declaration;
+            this.superclass = adopt(superclass);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object superValue = null;
+            if (superclass != null) {
+                superValue = superclass.execute(environment);
+                if (!(superValue instanceof LoxClass)) {
+                    throw new RuntimeError(declaration.superclass().name(), "Superclass must be a class.");
+                }
+            }
+
+            declare(environment, name, declaration.slot, declaration.isCaptured);
+            Environment frame = environment;
+            if (superclass != null) {
+                if (name != null) {
+                    frame = new Environment(1, Upvalue.NONE);
+                }
+                frame.set(declaration.superSlot, new Upvalue(superValue));
+            }
+
+            Map<Symbol, LoxFunction> table = new HashMap<>();
+            for (Function method : declaration.methods()) {
+                boolean isInitializer = method.name().symbol == Symbol.INIT;
+                table.put(method.name().symbol, new LoxFunction(method, Upvalue.capture(method, frame), isInitializer));
+            }
+            LoxClass klass = new LoxClass(declaration.name().lexeme, (LoxClass) superValue, table);
+            define(environment, name, declaration.slot, declaration.isCaptured, klass);
+            return Interpreter.NORMAL;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            superclass = swap(superclass, oldChild, newChild);
+        }
+    }
+
+    static Object executeAll(StmtNode[] statements, Environment environment) {
+        for (StmtNode statement : statements) {
+            Object completion = statement.execute(environment);
+            if (completion != Interpreter.NORMAL) {
+                return completion;
+            }
+        }
+        return Interpreter.NORMAL;
+    }
+
+    /** Boxes a captured local before its value exists, so a function or class can capture itself. */
+    private static void declare(Environment environment, Symbol globalName, int slot, boolean isCaptured) {
+        if (globalName == null && isCaptured) {
+            environment.set(slot, new Upvalue(null));
+        }
+    }
+
+    private static void define(Environment environment, Symbol globalName, int slot, boolean isCaptured,
+            Object value) {
+        if (globalName != null) {
+            environment.define(globalName, value);
+        } else if (isCaptured) {
+            environment.box(slot).value = value;
+        } else {
+            environment.set(slot, value);
+        }
+    }
+}
@@ -1,26 +1,26 @@
 package com.temma.lox;
 
-interface StmtVisitor {
+interface StmtVisitor<R> {
 
-    default void visit(Stmt stmt) {
-        stmt.accept(this);
+    default R visit(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void visitExpressionStmt(ExpressionStmt stmt);
+    R visitExpressionStmt(ExpressionStmt stmt);
 
-    void visitPrintStmt(Print stmt);
+    R visitPrintStmt(Print stmt);
 
-    void visitVariableDeclaration(VarDeclaration varDeclaration);
+    R visitVariableDeclaration(VarDeclaration varDeclaration);
 
-	void visitBlock(Block block);
+	R visitBlock(Block block);
 
-	void visitIfStmt(IfStmt ifStmt);
+	R visitIfStmt(IfStmt ifStmt);
 
-	void visitWhileStmt(WhileStmt whileStmt);
+	R visitWhileStmt(WhileStmt whileStmt);
 
-	void visitFunctionDecl(Function function);
+	R visitFunctionDecl(Function function);
 
-	void visitReturnStmt(ReturnStmt return1);
+	R visitReturnStmt(ReturnStmt return1);
 
-    void visitClassDecl(ClassStmt classStmt);
+    R visitClassDecl(ClassStmt classStmt);
 }
@@ -1,6 +1,26 @@
 package com.temma.lox;
 
-record Super(Token keyword, Token method) implements Expr {
+final class Super extends VariableRef {
+
+    private final Token keyword;
+    private final Token method;
+
+    /** The {@code this} the method is bound to, resolved on its own. */
+    final ThisExpr receiver;
+
+    Super(Token keyword, Token method) {
+        this.keyword = keyword;
+        this.method = method;
+        this.receiver = new ThisExpr(keyword);
+    }
+
+    Token keyword() {
+        return keyword;
+    }
+
+    Token method() {
+        return method;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
@@ -0,0 +1,80 @@
+package com.temma.lox;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A name interned program-wide. The {@link LexemeTable} of every scan, the
+ * REPL's lines and deferred function bodies included, hands out the same
+ * symbol for the same name, and so does {@link #of} for names the runtime
+ * looks up itself, such as {@link #INIT}. Two symbols are therefore equal
+ * only when they are the same object, and the hash is computed once, here.
+ * Globals, fields and methods are keyed by symbols, so a lookup that misses
+ * its inline cache neither hashes nor compares characters.
+ *
+ * <p>The table holds symbols weakly: a name nothing refers to any more, in
+ * the code or as a key, is dropped, so a long REPL session or a streamed
+ * script does not keep every name it ever saw. String literals are interned
+ * the same way by {@link #literal}, in a table of their own, so equal
+ * literals share one string while any of them is still in use.
+ */
+final class Symbol {
+
+    /** Keyed by the symbol's own name, so an entry lives exactly as long as its symbol. */
+    private static final Map<String, WeakReference<Symbol>> TABLE = new WeakHashMap<>();
+
+    /** String literals, each keyed by itself. */
+    private static final Map<String, WeakReference<String>> LITERALS = new WeakHashMap<>();
+
+    static final Symbol INIT = of("init");
+
+    final String name;
+    private final int hash;
+
+    private Symbol(String name) {
+        this.name = name;
+        this.hash = name.hashCode();
+    }
+
+    static Symbol of(String name) {
+        synchronized (TABLE) {
+            WeakReference<Symbol> entry = TABLE.get(name);
+            Symbol symbol = entry != null ? entry.get() : null;
+            if (symbol == null) {
+                symbol = new Symbol(name);
+                // Replacing the value keeps the old key, which may be a string the symbol does not hold.
+                TABLE.remove(name);
+                TABLE.put(symbol.name, new WeakReference<>(symbol));
+            }
+            return symbol;
+        }
+    }
+
+    /**
+     * The string an equal literal already seen shares, or {@code value} itself.
+     * Equality checks the reference first, so comparing such strings is cheap.
+     */
+    static String literal(String value) {
+        synchronized (LITERALS) {
+            WeakReference<String> entry = LITERALS.get(value);
+            String literal = entry != null ? entry.get() : null;
+            if (literal == null) {
+                literal = value;
+                LITERALS.remove(value);
+                LITERALS.put(literal, new WeakReference<>(literal));
+            }
+            return literal;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
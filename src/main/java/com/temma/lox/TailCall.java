@@ -0,0 +1,10 @@
+package com.temma.lox;
+
+/**
+ * A call made in tail position, evaluated but not yet entered. It is thrown
+ * out of the calling frame as the return value and entered by the
+ * trampoline in {@link LoxFunction#invoke}, so tail recursion runs in
+ * constant Java stack.
+ */
+record TailCall(LoxFunction function, LoxInstance self, Object[] arguments) {
+}
@@ -1,6 +1,16 @@
 package com.temma.lox;
 
-record ThisExpr(Token keyword) implements Expr {
+final class ThisExpr extends VariableRef {
+
+    private final Token keyword;
+
+    ThisExpr(Token keyword) {
+        this.keyword = keyword;
+    }
+
+    Token keyword() {
+        return keyword;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
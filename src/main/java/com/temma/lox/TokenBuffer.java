@@ -0,0 +1,93 @@
+package com.temma.lox;
+
+/**
+ * The tokens the {@link Parser} is looking at, stored column-wise: type,
+ * interned lexeme and line are plain ints, so scanning a token allocates
+ * nothing unless it is a literal. Tokens are addressed by their index in the
+ * stream and scanned when first asked for. The parser never looks further
+ * back than the token it just consumed, so the columns are a small ring.
+ * A {@link Token} object is only made for a token the parser asks for whole,
+ * typically to keep it in the AST.
+ */
+final class TokenBuffer {
+
+    private static final int CAPACITY = 4;
+    private static final int MASK = CAPACITY - 1;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /** Where tokens come from: a {@link Scanner}, or a {@link TokenRange} being replayed. */
+    interface Source {
+
+        /** Appends the next token to {@code out}; at the end, an EOF token. */
+        void scanToken(TokenBuffer out);
+
+        Symbol symbol(int id);
+    }
+
+    private final Source source;
+    private final int[] types = new int[CAPACITY];
+    private final int[] lexemes = new int[CAPACITY];
+    private final int[] lines = new int[CAPACITY];
+    /** Lexemes of tokens that are not interned: literals and EOF. */
+    private final String[] texts = new String[CAPACITY];
+    private final Token[] tokens = new Token[CAPACITY];
+    private int count = 0;
+
+    TokenBuffer(Source source) {
+        this.source = source;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[slot(index)]];
+    }
+
+    Token token(int index) {
+        int slot = slot(index);
+        if (tokens[slot] == null) {
+            tokens[slot] = materialize(slot);
+        }
+        return tokens[slot];
+    }
+
+    /** Copies a token into {@code range} without making a {@link Token} of it. */
+    void copy(int index, TokenRange range) {
+        int slot = slot(index);
+        range.add(TYPES[types[slot]], lexemes[slot], texts[slot], lines[slot]);
+    }
+
+    /** Appends a token; {@code lexeme} is a {@link LexemeTable} id, or -1 with the lexeme in {@code text}. */
+    void add(TokenType type, int lexeme, String text, int line) {
+        int slot = count++ & MASK;
+        types[slot] = type.ordinal();
+        lexemes[slot] = lexeme;
+        texts[slot] = text;
+        lines[slot] = line;
+        tokens[slot] = null;
+    }
+
+    private int slot(int index) {
+        if (index < count - CAPACITY) {
+            throw new IllegalStateException("Token " + index + " already left the buffer.");
+        }
+        while (index >= count) {
+            source.scanToken(this);
+        }
+        return index & MASK;
+    }
+
+    private Token materialize(int slot) {
+        TokenType type = TYPES[types[slot]];
+        if (lexemes[slot] >= 0) {
+            Symbol symbol = source.symbol(lexemes[slot]);
+            return new Token(type, symbol.name, null, lines[slot], symbol);
+        }
+        String lexeme = texts[slot];
+        Object literal = null;
+        if (type == TokenType.STRING) {
+            literal = Symbol.literal(lexeme.substring(1, lexeme.length() - 1));
+        } else if (type == TokenType.NUMBER) {
+            literal = Numbers.parse(lexeme);
+        }
+        return new Token(type, lexeme, literal, lines[slot], null);
+    }
+}
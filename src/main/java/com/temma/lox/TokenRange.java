@@ -0,0 +1,87 @@
+package com.temma.lox;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The tokens of a function body the {@link Parser} skipped over under
+ * {@code --lazy}, kept column-wise like {@link TokenBuffer} until the body is
+ * parsed on the function's first call. Replayed, they run up to and including
+ * the body's closing brace and are followed by EOF.
+ */
+final class TokenRange implements TokenBuffer.Source {
+
+    private final TokenBuffer.Source lexemeSource;
+    private TokenType[] types = new TokenType[16];
+    private int[] lexemes = new int[16];
+    private int[] lines = new int[16];
+    private String[] texts = new String[16];
+    private int count = 0;
+    private int next = 0;
+    private Set<String> names = null;
+
+    /** @param lexemeSource where the interned lexemes of the tokens are looked up */
+    TokenRange(TokenBuffer.Source lexemeSource) {
+        this.lexemeSource = lexemeSource;
+    }
+
+    void add(TokenType type, int lexeme, String text, int line) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            lexemes = Arrays.copyOf(lexemes, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+            texts = Arrays.copyOf(texts, count * 2);
+        }
+        types[count] = type;
+        lexemes[count] = lexeme;
+        lines[count] = line;
+        texts[count] = text;
+        count++;
+    }
+
+    /** Starts replaying the tokens from the first one. */
+    TokenRange rewind() {
+        next = 0;
+        return this;
+    }
+
+    @Override
+    public void scanToken(TokenBuffer out) {
+        if (next < count) {
+            out.add(types[next], lexemes[next], texts[next], lines[next]);
+            next++;
+        } else {
+            out.add(TokenType.EOF, -1, "", count == 0 ? 1 : lines[count - 1]);
+        }
+    }
+
+    @Override
+    public Symbol symbol(int id) {
+        return lexemeSource.symbol(id);
+    }
+
+    /**
+     * Every name the body might use, in order of first appearance: its
+     * identifiers, plus {@code this} and {@code super} when it mentions them
+     * (a {@code super} call reads {@code this} too).
+     */
+    Set<String> names() {
+        if (names == null) {
+            names = new LinkedHashSet<>();
+            for (int i = 0; i < count; i++) {
+                switch (types[i]) {
+                    case IDENTIFIER -> names.add(lexemeSource.symbol(lexemes[i]).name);
+                    case THIS -> names.add("this");
+                    case SUPER -> {
+                        names.add("super");
+                        names.add("this");
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,19 @@
+package com.temma.lox;
+
+/**
+ * Thrown by a typed execute method such as {@link ExprNode#executeDouble}
+ * when the value turns out not to be of that type. It carries the value, so
+ * the caller can continue on its generic path without evaluating anything
+ * twice. Only thrown when a specialization fails, so it has no stack trace.
+ */
+final class UnexpectedResultException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    final transient Object result;
+
+    UnexpectedResultException(Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
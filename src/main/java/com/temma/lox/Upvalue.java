@@ -0,0 +1,31 @@
+package com.temma.lox;
+
+/**
+ * Box of a captured local. The frame declaring the variable keeps the box in
+ * the variable's slot and every closure using it holds the same box, so an
+ * assignment through any of them is seen by all.
+ */
+final class Upvalue {
+
+    static final Upvalue[] NONE = new Upvalue[0];
+
+    Object value;
+
+    Upvalue(Object value) {
+        this.value = value;
+    }
+
+    /** Gathers the boxes a closure of {@code declaration} created in {@code frame} captures. */
+    static Upvalue[] capture(Function declaration, Environment frame) {
+        int[] captures = declaration.captures;
+        if (captures.length == 0) {
+            return NONE;
+        }
+        Upvalue[] upvalues = new Upvalue[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int source = captures[i];
+            upvalues[i] = source >= 0 ? frame.box(source) : frame.upvalue(~source);
+        }
+        return upvalues;
+    }
+}
@@ -1,9 +1,31 @@
 package com.temma.lox;
 
-public record VarDeclaration(Token name, Expr initializer) implements Stmt {
+final class VarDeclaration implements Stmt {
+
+    private final Token name;
+    private final Expr initializer;
+
+    /** Frame slot of a local, filled in by the {@link Resolver}. */
+    int slot = 0;
+
+    /** Whether a closure captures the local, so its slot holds an {@link Upvalue}. */
+    boolean isCaptured = false;
+
+    VarDeclaration(Token name, Expr initializer) {
+        this.name = name;
+        this.initializer = initializer;
+    }
+
+    Token name() {
+        return name;
+    }
+
+    Expr initializer() {
+        return initializer;
+    }
 
     @Override
-    public void accept(StmtVisitor visitor) {
-        visitor.visitVariableDeclaration(this);
+    public <R> R accept(StmtVisitor<R> visitor) {
+        return visitor.visitVariableDeclaration(this);
     }
 }
@@ -1,6 +1,16 @@
 package com.temma.lox;
 
-record Variable(Token name) implements Expr {
+final class Variable extends VariableRef {
+
+    private final Token name;
+
+    Variable(Token name) {
+        this.name = name;
+    }
+
+    Token name() {
+        return name;
+    }
 
     @Override
     public <R> R accept(ExprVisitor<R> visitor) {
@@ -0,0 +1,30 @@
+package com.temma.lox;
+
+/**
+ * Base of the expressions that read or write a variable ({@code this} and
+ * {@code super} included). The {@link Resolver} stores where the variable
+ * lives directly on the node, so the interpreter reaches it without a side
+ * table.
+ */
+abstract class VariableRef implements Expr {
+
+    /** Looked up by name in the globals. */
+    static final int GLOBAL = 0;
+    /** A slot of the running frame. */
+    static final int LOCAL = 1;
+    /** A slot of the running frame holding the {@link Upvalue} of a captured local. */
+    static final int BOXED = 2;
+    /** An upvalue of the running closure. */
+    static final int UPVALUE = 3;
+
+    /** How the variable is reached: one of the constants above. */
+    int kind = GLOBAL;
+
+    /** Frame slot for {@link #LOCAL} and {@link #BOXED}, upvalue index for {@link #UPVALUE}. */
+    int slot = 0;
+
+    void resolve(int kind, int slot) {
+        this.kind = kind;
+        this.slot = slot;
+    }
+}
@@ -3,7 +3,7 @@ package com.temma.lox;
 record WhileStmt(Expr condition, Stmt body) implements Stmt {
 
 	@Override
-	public void accept(StmtVisitor visitor) {
-		visitor.visitWhileStmt(this);
+	public <R> R accept(StmtVisitor<R> visitor) {
+		return visitor.visitWhileStmt(this);
 	}
 }
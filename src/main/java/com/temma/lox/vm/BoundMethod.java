@@ -0,0 +1,9 @@
+package com.temma.lox.vm;
+
+record BoundMethod(Object receiver, Closure method) {
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
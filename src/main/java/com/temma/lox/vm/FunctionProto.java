@@ -0,0 +1,34 @@
+package com.temma.lox.vm;
+
+/**
+ * Compiled form of a function declaration (or of the top-level script). It
+ * becomes callable only once wrapped in a {@link Closure} at runtime.
+ */
+public final class FunctionProto {
+
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+
+    public FunctionProto(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    public Chunk chunk() {
+        return chunk;
+    }
+
+    public void setUpvalueCount(int upvalueCount) {
+        this.upvalueCount = upvalueCount;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            return "<script>";
+        }
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,8 @@
+package com.temma.lox.vm;
+
+interface NativeFunction {
+
+    int arity();
+
+    Object call(Object[] arguments);
+}
@@ -0,0 +1,21 @@
+package com.temma.lox.vm;
+
+/**
+ * A variable captured by a closure. While the variable is still live on the
+ * VM stack the upvalue is open and points at its slot; once the slot is popped
+ * the value is moved into the upvalue itself.
+ */
+final class Upvalue {
+
+    int slot;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int slot) {
+        this.slot = slot;
+    }
+
+    boolean isOpen() {
+        return slot >= 0;
+    }
+}
@@ -0,0 +1,561 @@
+package com.temma.lox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stack-based virtual machine executing the bytecode produced by the compiler.
+ * Globals survive between calls to {@link #interpret(FunctionProto)} so that
+ * the REPL keeps its state across lines.
+ */
+public final class VM {
+
+    private static final int FRAMES_MAX = 1 << 16;
+
+    private final Map<String, Object> globals = new HashMap<>();
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+
+    public VM() {
+        globals.put("clock", new NativeFunction() {
+
+            @Override
+            public int arity() {
+                return 0;
+            }
+
+            @Override
+            public Object call(Object[] arguments) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    public void interpret(FunctionProto script) {
+        Closure closure = new Closure(script);
+        push(closure);
+        try {
+            call(closure, 0);
+            run();
+        } finally {
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.NIL:
+                    push(null);
+                    break;
+                case OpCode.TRUE:
+                    push(true);
+                    break;
+                case OpCode.FALSE:
+                    push(false);
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.GET_LOCAL: {
+                    push(stack[base + readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    stack[base + readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        throw error(frame, ip, "Undefined variable '" + name + "'");
+                    }
+                    push(value);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    globals.put((String) constants[readShort(code, ip)], stack[--sp]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        throw error(frame, ip, "Undefined variable '" + name + "'.");
+                    }
+                    globals.put(name, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    push(upvalue.isOpen() ? stack[upvalue.slot] : upvalue.closed);
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if (upvalue.isOpen()) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 1] instanceof VmInstance instance)) {
+                        throw error(frame, ip, "Only instances have properties.");
+                    }
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    stack[sp - 1] = bindMethod(frame, ip, instance.klass, instance, name);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof VmInstance instance)) {
+                        throw error(frame, ip, "Only instances have fields.");
+                    }
+                    Object value = stack[sp - 1];
+                    instance.fields.put(name, value);
+                    sp--;
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    stack[sp - 1] = bindMethod(frame, ip, superclass, stack[sp - 1], name);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = !isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] > b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] >= b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] < b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] <= b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (a instanceof Double d1 && b instanceof Double d2) {
+                        stack[sp - 2] = d1 + d2;
+                    } else if (a instanceof String s1 && b instanceof String s2) {
+                        stack[sp - 2] = s1 + s2;
+                    } else {
+                        throw error(frame, ip, "Operands must be two numbers or two strings");
+                    }
+                    sp--;
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] - b;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] * b;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) stack[--sp];
+                    stack[sp - 1] = (double) stack[sp - 1] / b;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    if (!(stack[sp - 1] instanceof Double d)) {
+                        throw error(frame, ip, "Operand must be a number.");
+                    }
+                    stack[sp - 1] = -d;
+                    break;
+                }
+                case OpCode.PRINT:
+                    System.out.println(stringify(stack[--sp]));
+                    break;
+                case OpCode.JUMP: {
+                    int offset = readShort(code, ip);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = readShort(code, ip);
+                    ip += 2;
+                    if (!isTruthy(stack[sp - 1])) {
+                        ip += offset;
+                    }
+                    break;
+                }
+                case OpCode.LOOP: {
+                    int offset = readShort(code, ip);
+                    ip += 2 - offset;
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(frame, stack[sp - argCount - 1], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(frame, name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.SUPER_INVOKE: {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    invokeFromClass(frame, superclass, name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    FunctionProto function = (FunctionProto) constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure closure = new Closure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] != 0;
+                        int index = readShort(code, ip);
+                        ip += 2;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    push(closure);
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        sp = 0;
+                        return;
+                    }
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    push(new VmClass((String) constants[readShort(code, ip)]));
+                    ip += 2;
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    if (!(stack[sp - 2] instanceof VmClass superclass)) {
+                        throw error(frame, ip, "Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass) stack[sp - 1];
+                    subclass.methods.putAll(superclass.methods);
+                    sp--;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClass klass = (VmClass) stack[sp - 2];
+                    klass.methods.put(name, (Closure) stack[--sp]);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+            }
+        }
+    }
+
+    private void callValue(CallFrame frame, Object callee, int argCount) {
+        if (callee instanceof Closure closure) {
+            call(closure, argCount);
+        } else if (callee instanceof BoundMethod bound) {
+            stack[sp - argCount - 1] = bound.receiver();
+            call(bound.method(), argCount);
+        } else if (callee instanceof VmClass klass) {
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            Closure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw error(frame, frame.ip, "Expect 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof NativeFunction function) {
+            if (argCount != function.arity()) {
+                throw error(frame, frame.ip, "Expect " + function.arity() +
+                      " arguments but got " + argCount + ".");
+            }
+            Object[] arguments = Arrays.copyOfRange(stack, sp - argCount, sp);
+            Object result = function.call(arguments);
+            sp -= argCount;
+            stack[sp - 1] = result;
+        } else {
+            throw error(frame, frame.ip, "Can only call functions and classes.");
+        }
+    }
+
+    private void invoke(CallFrame frame, String name, int argCount) {
+        if (!(stack[sp - argCount - 1] instanceof VmInstance instance)) {
+            throw error(frame, frame.ip, "Only instances have properties.");
+        }
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = field;
+            callValue(frame, field, argCount);
+            return;
+        }
+        invokeFromClass(frame, instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(CallFrame frame, VmClass klass, String name, int argCount) {
+        Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(frame, frame.ip, "Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private BoundMethod bindMethod(CallFrame frame, int ip, VmClass klass, Object receiver, String name) {
+        Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(frame, ip, "Undefined property '" + name + "'.");
+        }
+        return new BoundMethod(receiver, method);
+    }
+
+    private void call(Closure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            CallFrame caller = frames[frameCount - 1];
+            throw error(caller, caller.ip, "Expect " + closure.function.arity +
+                  " arguments but got " + argCount + ".");
+        }
+        if (frameCount > 0) {
+            CallFrame caller = frames[frameCount - 1];
+            if (caller.closure.function.chunk.code[caller.ip] == OpCode.RETURN) {
+                replaceFrame(caller, closure, argCount);
+                return;
+            }
+        }
+        if (frameCount == FRAMES_MAX) {
+            CallFrame caller = frames[frameCount - 1];
+            throw error(caller, caller.ip, "Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+        frameCount++;
+    }
+
+    /**
+     * Enters a call whose result the caller returns right away, as in
+     * {@code return f(...)}, in the caller's frame: the callee and its
+     * arguments replace the caller's slots, so tail recursion runs in
+     * constant frames. Initializers return {@code this} and never end in
+     * such a call.
+     */
+    private void replaceFrame(CallFrame frame, Closure closure, int argCount) {
+        closeUpvalues(frame.base);
+        int end = frame.base + argCount + 1;
+        System.arraycopy(stack, sp - argCount - 1, stack, frame.base, argCount + 1);
+        Arrays.fill(stack, end, sp, null);
+        sp = end;
+        frame.closure = closure;
+        frame.ip = 0;
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+        Upvalue created = new Upvalue(slot);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip) {
+        if (stack[sp - 2] instanceof Double && stack[sp - 1] instanceof Double) {
+            return;
+        }
+        throw error(frame, ip, "Operands must be numbers.");
+    }
+
+    private VmError error(CallFrame frame, int ip, String message) {
+        return new VmError(message, frame.closure.function.chunk.lines[ip - 1]);
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) {
+            return true;
+        }
+        if (a == null) {
+            return false;
+        }
+        return a.equals(b);
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) {
+            return false;
+        }
+        if (object instanceof Boolean bool) {
+            return bool;
+        }
+        return true;
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) {
+            return "nil";
+        }
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return object.toString();
+    }
+
+    private static final class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+}
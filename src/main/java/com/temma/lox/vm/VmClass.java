@@ -0,0 +1,19 @@
+package com.temma.lox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class VmClass {
+
+    final String name;
+    final Map<String, Closure> methods = new HashMap<>();
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
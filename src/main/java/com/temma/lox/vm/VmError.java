@@ -0,0 +1,16 @@
+package com.temma.lox.vm;
+
+public class VmError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+    private final int line;
+
+    VmError(String message, int line) {
+        super(message);
+        this.line = line;
+    }
+
+    public int line() {
+        return line;
+    }
+}
@@ -0,0 +1,79 @@
+package com.temma.lox;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link CharRuns} comparing a whole vector of characters per step. The
+ * characters are loaded as shorts; those from U+8000 up come out negative,
+ * which still falls outside every range tested here, so as in the scalar
+ * version only ASCII characters continue an identifier. What is left at the
+ * end, less than a vector, goes through {@link CharRuns#SCALAR}.
+ */
+final class VectorCharRuns implements CharRuns {
+
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public int skipWhitespace(char[] chars, int from, int end) {
+        int i = from;
+        for (; i + LANES <= end; i += LANES) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> other = v.eq((short) ' ')
+                    .or(v.eq((short) '\n'))
+                    .or(v.eq((short) '\t'))
+                    .or(v.eq((short) '\r'))
+                    .not();
+            if (other.anyTrue()) {
+                return i + other.firstTrue();
+            }
+        }
+        return SCALAR.skipWhitespace(chars, i, end);
+    }
+
+    @Override
+    public int skipIdentifier(char[] chars, int from, int end) {
+        int i = from;
+        for (; i + LANES <= end; i += LANES) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> other = between(v, 'a', 'z')
+                    .or(between(v, 'A', 'Z'))
+                    .or(between(v, '0', '9'))
+                    .or(v.eq((short) '_'))
+                    .not();
+            if (other.anyTrue()) {
+                return i + other.firstTrue();
+            }
+        }
+        return SCALAR.skipIdentifier(chars, i, end);
+    }
+
+    private static VectorMask<Short> between(ShortVector v, char low, char high) {
+        return v.compare(VectorOperators.GE, (short) low).and(v.compare(VectorOperators.LE, (short) high));
+    }
+
+    @Override
+    public int indexOf(char[] chars, int from, int end, char c) {
+        int i = from;
+        for (; i + LANES <= end; i += LANES) {
+            VectorMask<Short> found = ShortVector.fromCharArray(SPECIES, chars, i).eq((short) c);
+            if (found.anyTrue()) {
+                return i + found.firstTrue();
+            }
+        }
+        return SCALAR.indexOf(chars, i, end, c);
+    }
+
+    @Override
+    public int countNewlines(char[] chars, int from, int end) {
+        int newlines = 0;
+        int i = from;
+        for (; i + LANES <= end; i += LANES) {
+            newlines += ShortVector.fromCharArray(SPECIES, chars, i).eq((short) '\n').trueCount();
+        }
+        return newlines + SCALAR.countNewlines(chars, i, end);
+    }
+}